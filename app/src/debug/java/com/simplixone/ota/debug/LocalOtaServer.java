@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.debug;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the OTA servers, to exercise checks and push mode offline.
+ * Files under the root directory are served as they are, e.g. manifests, and
+ * /events/ paths are server-sent events streams announcing a new build each
+ * time {@link #publish()} is called. Files are served with an ETag and single
+ * byte ranges are honored, so segmented and resumed downloads can be tried
+ * against it. HEAD requests get the same headers without the body, as probes
+ * and connection pre-warming expect. Only listens on the loopback
+ * interface.
+ */
+public class LocalOtaServer {
+    private static final String TAG = "LocalOtaServer";
+    private static final String EVENTS_PATH = "/events/";
+    private static final long KEEP_ALIVE_INTERVAL = 60 * 1000; // 1 minute
+    private static final Pattern RANGE = Pattern.compile("(?i)range:\\s*bytes=(\\d+)-(\\d*)");
+
+    private final int mPort;
+    private final File mRoot;
+    private final List<OutputStream> mStreams = new ArrayList<>();
+    private ServerSocket mServerSocket;
+    private int mEventId;
+
+    public LocalOtaServer(int port, File root) {
+        mPort = port;
+        mRoot = root;
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(mPort, 0, InetAddress.getLoopbackAddress());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, TAG).start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                keepAlive();
+            }
+        }, TAG + "-keepalive").start();
+        Log.d(TAG, "Serving " + mRoot + " on port " + mPort);
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // ignored, can't do anything anyway
+        }
+        synchronized (mStreams) {
+            for (OutputStream out : mStreams) {
+                closeQuietly(out);
+            }
+            mStreams.clear();
+        }
+    }
+
+    /**
+     * Announce a new build to every open events stream
+     */
+    public void publish() {
+        String event;
+        synchronized (mStreams) {
+            event = "id: " + (++mEventId) + "\nevent: build\ndata: {}\n\n";
+        }
+        send(event);
+        Log.d(TAG, "Published build event " + mEventId);
+    }
+
+    private void keepAlive() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                Thread.sleep(KEEP_ALIVE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            send(": keep-alive\n\n");
+        }
+    }
+
+    private void send(String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        synchronized (mStreams) {
+            for (int i = mStreams.size() - 1; i >= 0; i--) {
+                OutputStream out = mStreams.get(i);
+                try {
+                    out.write(bytes);
+                    out.flush();
+                } catch (IOException e) {
+                    closeQuietly(out);
+                    mStreams.remove(i);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }, TAG + "-client").start();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            String requestLine = reader.readLine();
+            String line;
+            Matcher range = null;
+            String ifRange = null;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                Matcher matcher = RANGE.matcher(line);
+                if (matcher.matches()) {
+                    range = matcher;
+                } else if (line.toLowerCase().startsWith("if-range:")) {
+                    ifRange = line.substring("if-range:".length()).trim();
+                }
+            }
+            String[] parts = requestLine != null ? requestLine.split(" ") : new String[0];
+            OutputStream out = socket.getOutputStream();
+            if (parts.length < 2 || !("GET".equals(parts[0]) || "HEAD".equals(parts[0]))) {
+                writeHeader(out, "405 Method Not Allowed", "text/plain", 0);
+                socket.close();
+                return;
+            }
+            boolean head = "HEAD".equals(parts[0]);
+            String path = parts[1];
+            if (path.startsWith(EVENTS_PATH)) {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                        + "Cache-Control: no-cache\r\nConnection: keep-alive\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (head) {
+                    socket.close();
+                    return;
+                }
+                synchronized (mStreams) {
+                    mStreams.add(out);
+                }
+                // The socket stays open, written to by publish()
+                return;
+            }
+            serveFile(out, path, range, ifRange, head);
+            socket.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Request failed: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // ignored, can't do anything anyway
+            }
+        }
+    }
+
+    private void serveFile(OutputStream out, String path, Matcher range, String ifRange,
+                           boolean head) throws IOException {
+        File file = new File(mRoot, path);
+        if (!file.getCanonicalPath().startsWith(mRoot.getCanonicalPath()) || !file.isFile()) {
+            writeHeader(out, "404 Not Found", "text/plain", 0);
+            return;
+        }
+        String type = path.endsWith(".json") ? "application/json" : "application/octet-stream";
+        String validator = "\"" + Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified()) + "\"";
+        String headers = "ETag: " + validator + "\r\nAccept-Ranges: bytes\r\n";
+        long from = 0;
+        long length = file.length();
+        // A range of another version of the file is answered with the whole file
+        if (range != null && (ifRange == null || ifRange.equals(validator))) {
+            from = Long.parseLong(range.group(1));
+            long to = range.group(2).isEmpty() ? file.length() - 1
+                    : Math.min(Long.parseLong(range.group(2)), file.length() - 1);
+            if (from > to) {
+                writeHeader(out, "416 Range Not Satisfiable", type, 0);
+                return;
+            }
+            length = to - from + 1;
+            out.write(("HTTP/1.1 206 Partial Content\r\nContent-Type: " + type
+                    + "\r\nContent-Range: bytes " + from + "-" + to + "/" + file.length()
+                    + "\r\nContent-Length: " + length + "\r\n" + headers + "Connection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        } else {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + type + "\r\nContent-Length: "
+                    + length + "\r\n" + headers + "Connection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (head) {
+            out.flush();
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            in.skip(from);
+            byte[] buffer = new byte[8192];
+            int read;
+            while (length > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length))) > 0) {
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeHeader(OutputStream out, String status, String type, long length)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + type + "\r\nContent-Length: "
+                + length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignored, can't do anything anyway
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.debug;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Drives the {@link LocalOtaServer} of debug builds from adb:
+ * <pre>
+ * adb shell setprop com.simplixone.ota.server http://127.0.0.1:8080/%s/%s.json
+ * adb shell setprop com.simplixone.ota.push_url http://127.0.0.1:8080/events/%s
+ * adb push device/version.json /sdcard/Android/data/com.simplixone.ota/files/ota-server/device/
+ * adb shell am broadcast -a com.simplixone.ota.debug.SERVER_START
+ * adb shell am broadcast -a com.simplixone.ota.debug.SERVER_PUBLISH
+ * adb shell am broadcast -a com.simplixone.ota.debug.SERVER_STOP
+ * </pre>
+ */
+public class LocalServerReceiver extends BroadcastReceiver {
+    private static final String TAG = "LocalServerReceiver";
+    public static final String ACTION_START = "com.simplixone.ota.debug.SERVER_START";
+    public static final String ACTION_PUBLISH = "com.simplixone.ota.debug.SERVER_PUBLISH";
+    public static final String ACTION_STOP = "com.simplixone.ota.debug.SERVER_STOP";
+    public static final String EXTRA_PORT = "port";
+    private static final int DEFAULT_PORT = 8080;
+    private static final String ROOT_DIR = "ota-server";
+
+    private static LocalOtaServer sServer;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (ACTION_START.equals(action)) {
+            if (sServer != null) {
+                return;
+            }
+            File root = new File(context.getExternalFilesDir(null), ROOT_DIR);
+            sServer = new LocalOtaServer(intent.getIntExtra(EXTRA_PORT, DEFAULT_PORT), root);
+            try {
+                sServer.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start the local server", e);
+                sServer = null;
+            }
+        } else if (ACTION_PUBLISH.equals(action)) {
+            if (sServer != null) {
+                sServer.publish();
+            }
+        } else if (ACTION_STOP.equals(action)) {
+            if (sServer != null) {
+                sServer.stop();
+                sServer = null;
+            }
+        }
+    }
+}
@@ -13,24 +13,38 @@ package com.simplixone.ota;
 import android.app.Activity;
 import android.app.Application;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 
 import com.simplixone.ota.activities.UpdaterActivity;
+import com.simplixone.ota.requests.HttpTransport;
+import com.simplixone.ota.requests.PooledHttpTransport;
+import com.simplixone.ota.requests.TransportStack;
 
 public class UpdaterApplication extends Application implements
         Application.ActivityLifecycleCallbacks {
+    private static final String TAG = "UpdaterApplication";
 
     private boolean mMainActivityActive;
     private RequestQueue mRequestQueue;
+    private HttpTransport mTransport;
+    private TransportStack mTransportStack;
 
     @Override
     public void onCreate() {
+        long start = SystemClock.elapsedRealtime();
         super.onCreate();
         mMainActivityActive = false;
         registerActivityLifecycleCallbacks(this);
-        mRequestQueue = Volley.newRequestQueue(this);
+        // The network stack is only created once something needs it, most
+        // wakeups (boot, download events) never do
+        long now = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Started in " + (now - Process.getStartElapsedRealtime())
+                + "ms, onCreate took " + (now - start) + "ms");
     }
 
     @Override
@@ -71,7 +85,30 @@ public class UpdaterApplication extends Application implements
         return mMainActivityActive;
     }
 
-    public RequestQueue getQueue() {
+    public synchronized RequestQueue getQueue() {
+        if (mRequestQueue == null) {
+            long start = SystemClock.elapsedRealtime();
+            mTransportStack = new TransportStack(getTransport());
+            mRequestQueue = Volley.newRequestQueue(this, mTransportStack);
+            Log.d(TAG, "Request queue created in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
         return mRequestQueue;
     }
+
+    public synchronized HttpTransport getTransport() {
+        if (mTransport == null) {
+            mTransport = new PooledHttpTransport();
+        }
+        return mTransport;
+    }
+
+    /**
+     * Replace the transport used by all requests, e.g. with a local test server
+     */
+    public synchronized void setTransport(HttpTransport transport) {
+        mTransport = transport;
+        if (mTransportStack != null) {
+            mTransportStack.setTransport(transport);
+        }
+    }
 }
@@ -51,18 +51,27 @@ import com.simplixone.ota.misc.Constants;
 import com.simplixone.ota.misc.State;
 import com.simplixone.ota.misc.UpdateInfo;
 import com.simplixone.ota.receiver.DownloadReceiver;
+import com.simplixone.ota.requests.HttpTransport;
+import com.simplixone.ota.requests.SegmentedDownloader;
+import com.simplixone.ota.service.DownloadService;
+import com.simplixone.ota.service.UpdatePushService;
+import com.simplixone.ota.utils.CheckSchedulePolicy;
 import com.simplixone.ota.utils.MD5;
 import com.simplixone.ota.utils.UpdateChecker;
+import com.simplixone.ota.utils.DownloadPolicy;
 import com.simplixone.ota.utils.UpdateFilter;
+import com.simplixone.ota.utils.UpdaterCheckerResult;
 import com.simplixone.ota.utils.Utils;
 
 import com.simplixone.ota.R;
+import com.simplixone.ota.UpdaterApplication;
 
 import com.simplixone.ota.preferences.UpdatePreference;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -73,6 +82,14 @@ public class UpdaterActivity extends PreferenceActivity implements
         UpdatePreference.OnActionListener {
     private static final String UPDATES_CATEGORY = "updates_category";
     private static final String PREF_DOWNLOAD_FOLDER = "pref_download_folder";
+    private static final String SETTINGS_CATEGORY = "settings_category";
+    private static final List<String> DOWNLOAD_POLICY_PREFS = Arrays.asList(
+            Constants.DOWNLOAD_UNMETERED_ONLY_PREF, Constants.DOWNLOAD_CHARGING_ONLY_PREF,
+            Constants.DOWNLOAD_MIN_BATTERY_PREF, Constants.DOWNLOAD_QUIET_HOURS_PREF,
+            Constants.DOWNLOAD_OFF_PEAK_PREF);
+    private static final List<String> CHECK_SCHEDULE_PREFS = Arrays.asList(
+            Constants.CHECK_UNMETERED_ONLY_PREF, Constants.CHECK_CHARGING_ONLY_PREF,
+            Constants.CHECK_IDLE_ONLY_PREF);
     private static String DEVELOPER_URL = "";
     private static String DONATE_URL = "";
     private static String FORUM_URL = "";
@@ -80,10 +97,21 @@ public class UpdaterActivity extends PreferenceActivity implements
     private static String NEWS_URL = "";
     private SharedPreferences mPrefs;
     private SwitchPreference mMobileDataWarning;
+    private SwitchPreference mPushUpdates;
     private PreferenceScreen preferenceScreen;
     private PreferenceCategory mUpdatesList;
     private Preference mLastCheckPreference;
     private UpdatePreference mCurrentUpdate;
+    // Results come through ACTION_CHECK_FINISHED, this only keeps a shared check going
+    private final UpdaterCheckerResult mCheckListener = new UpdaterCheckerResult() {
+        @Override
+        public void onResult(boolean result) {
+        }
+
+        @Override
+        public void onCancelled() {
+        }
+    };
 
     private File mUpdateFolder;
     private boolean mStartUpdateVisible = false;
@@ -114,6 +142,11 @@ public class UpdaterActivity extends PreferenceActivity implements
             // Enable updates button
             stopDownloadButton.setEnabled(true);
 
+            if (mDownloadId == Constants.SEGMENTED_DOWNLOAD_ID) {
+                updateSegmentedProgress(progressBar);
+                return;
+            }
+
             DownloadManager.Query q = new DownloadManager.Query();
             q.setFilterById(mDownloadId);
 
@@ -167,6 +200,42 @@ public class UpdaterActivity extends PreferenceActivity implements
             }
         }
     };
+
+    private void updateSegmentedProgress(ProgressBar progressBar) {
+        SegmentedDownloader downloader = SegmentedDownloader.getActive();
+        int status = downloader != null && downloader.getFileName().equals(mFileName)
+                ? downloader.getStatus() : SegmentedDownloader.STATUS_PENDING;
+        switch (status) {
+            case SegmentedDownloader.STATUS_PENDING:
+                progressBar.setIndeterminate(true);
+                break;
+            case SegmentedDownloader.STATUS_RUNNING:
+                long totalBytes = downloader.getTotalBytes();
+                if (totalBytes <= 0) {
+                    progressBar.setIndeterminate(true);
+                } else {
+                    long downloadedBytes = downloader.getDownloadedBytes();
+                    // In KiB, sizes may not fit in an int
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax((int) (totalBytes / 1024));
+                    progressBar.setProgress((int) (downloadedBytes / 1024));
+                    int percent = (int) ((downloadedBytes * 100L) / totalBytes);
+                    mCurrentUpdate.updateDownloadPercent(percent);
+                }
+                break;
+            case SegmentedDownloader.STATUS_SUCCESSFUL:
+                mCurrentUpdate.setStyle(UpdatePreference.STYLE_COMPLETING);
+                return;
+            default:
+                // Paused or failed, what was checkpointed can be resumed
+                mCurrentUpdate.setStyle(SegmentedDownloader.isResumable(downloader.getFile())
+                        ? UpdatePreference.STYLE_PAUSED : UpdatePreference.STYLE_NEW);
+                resetDownloadState();
+                return;
+        }
+        mUpdateHandler.postDelayed(mUpdateProgress, 1000);
+    }
+
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -188,7 +257,9 @@ public class UpdaterActivity extends PreferenceActivity implements
                         showToast(getString(isAvailable ? R.string.update_found_notification : R.string.no_updates_available), Toast.LENGTH_SHORT);
                     }
                 }
-                updateLayout(false);
+                if (!intent.getBooleanExtra(UpdateChecker.EXTRA_UNCHANGED, false)) {
+                    updateLayout(false);
+                }
             }
         }
     };
@@ -230,12 +301,14 @@ public class UpdaterActivity extends PreferenceActivity implements
                         .setMD5(update.getMD5())
                         .setDeveloper(update.getDeveloper())
                         .setDeveloperUrl(update.getDeveloperUrl())
-                        .setChangelog(update.getChangelog())
+                        .setChangelogUrl(update.getChangelogUrl())
+                        .setChangelogMD5(update.getChangelogMD5())
                         .setDonateUrl(update.getDonateUrl())
                         .setForumUrl(update.getForumUrl())
                         .setWebsiteUrl(update.getWebsiteUrl())
                         .setNewsUrl(update.getNewsUrl())
-                        .setAddons(update.getAddonsInJson())
+                        .setAddons(update.getAddons())
+                        .setChannel(update.getChannel())
                         .build();
                 update = ui;
             }
@@ -293,6 +366,8 @@ public class UpdaterActivity extends PreferenceActivity implements
                     style = UpdatePreference.STYLE_COMPLETING;
                     mDownloading = true;
                     mFileName = ui.getFileName();
+                } else if (DownloadService.isResumable(ui)) {
+                    style = UpdatePreference.STYLE_PAUSED;
                 } else if (ui.getDownloadUrl() != null) {
                     style = UpdatePreference.STYLE_NEW;
                 } else {
@@ -364,6 +439,23 @@ public class UpdaterActivity extends PreferenceActivity implements
         mMobileDataWarning.setChecked(mPrefs.getBoolean(Constants.MOBILE_DATA_WARNING_PREF, true));
         mMobileDataWarning.setOnPreferenceChangeListener(this);
 
+        mPushUpdates = (SwitchPreference) findPreference(Constants.PUSH_UPDATES_PREF);
+        if (Utils.getPushURL() == null) {
+            // No push server for this device
+            ((PreferenceCategory) findPreference(SETTINGS_CATEGORY)).removePreference(mPushUpdates);
+        } else {
+            mPushUpdates.setChecked(mPrefs.getBoolean(Constants.PUSH_UPDATES_PREF, Constants.PUSH_UPDATES_DEFAULT));
+            mPushUpdates.setOnPreferenceChangeListener(this);
+        }
+
+        for (String key : CHECK_SCHEDULE_PREFS) {
+            findPreference(key).setOnPreferenceChangeListener(this);
+        }
+        for (String key : DOWNLOAD_POLICY_PREFS) {
+            findPreference(key).setOnPreferenceChangeListener(this);
+        }
+        findPreference(Constants.PREFETCH_UPDATES_PREF).setOnPreferenceChangeListener(this);
+
         // clean temp dir
         Utils.deleteTempFolder();
         Handler handler = new Handler();
@@ -395,16 +487,32 @@ public class UpdaterActivity extends PreferenceActivity implements
         mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
             @Override
             public void onCancel(DialogInterface dialog) {
-                UpdateChecker.cancelAllRequests(UpdaterActivity.this);
+                UpdateChecker.cancel(UpdaterActivity.this, mCheckListener);
                 mProgressDialog = null;
             }
         });
 
-        new UpdateChecker(this, null).check();
+        new UpdateChecker(this, mCheckListener).check();
 
         mProgressDialog.show();
     }
 
+    /**
+     * Get the handshakes with the update and download servers out of the way
+     * while the user is looking at the list
+     */
+    private void prewarmConnections() {
+        if (!Utils.isOnline(this)) {
+            return;
+        }
+        HttpTransport transport = ((UpdaterApplication) getApplication()).getTransport();
+        transport.prewarm(Utils.getServerURLs().get(0));
+        UpdateInfo update = State.loadState(this);
+        if (update != null && Utils.isValidURL(update.getDownloadUrl())) {
+            transport.prewarm(update.getDownloadUrl());
+        }
+    }
+
     private void resetDownloadState() {
         mDownloadId = -1;
         mFileName = null;
@@ -417,6 +525,33 @@ public class UpdaterActivity extends PreferenceActivity implements
             boolean checked = Boolean.valueOf(o.toString());
             mPrefs.edit().putBoolean(Constants.MOBILE_DATA_WARNING_PREF, checked).apply();
             return true;
+        } else if (preference == mPushUpdates) {
+            boolean checked = Boolean.valueOf(o.toString());
+            mPrefs.edit().putBoolean(Constants.PUSH_UPDATES_PREF, checked).apply();
+            UpdatePushService.schedule(this);
+            return true;
+        } else if (Constants.PREFETCH_UPDATES_PREF.equals(preference.getKey())) {
+            DownloadPolicy policy = new DownloadPolicy(this);
+            if (!Boolean.valueOf(o.toString()) && policy.isPrefetch()) {
+                policy.cancel();
+            }
+            return true;
+        } else if (CHECK_SCHEDULE_PREFS.contains(preference.getKey())) {
+            // Saved now rather than once we return, the pending check follows the new constraints
+            mPrefs.edit().putBoolean(preference.getKey(), (Boolean) o).apply();
+            new CheckSchedulePolicy(this).reschedule();
+            return true;
+        } else if (DOWNLOAD_POLICY_PREFS.contains(preference.getKey())) {
+            // Saved now rather than once we return, the scheduled download follows the new policy
+            SharedPreferences.Editor editor = mPrefs.edit();
+            if (o instanceof Boolean) {
+                editor.putBoolean(preference.getKey(), (Boolean) o);
+            } else {
+                editor.putString(preference.getKey(), o.toString());
+            }
+            editor.apply();
+            new DownloadPolicy(this).reschedule();
+            return true;
         }
         return false;
     }
@@ -437,7 +572,19 @@ public class UpdaterActivity extends PreferenceActivity implements
 
         // Determine if there are any in-progress downloads
         mDownloadId = mPrefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (mDownloadId >= 0) {
+        if (mDownloadId == Constants.SEGMENTED_DOWNLOAD_ID) {
+            SegmentedDownloader downloader = SegmentedDownloader.getActive();
+            if (downloader == null || !downloader.isRunning()) {
+                // Interrupted, it gets resumed from its checkpoint
+                UpdateInfo update = State.loadState(this);
+                if (update == null || !DownloadService.isResumable(update)) {
+                    showToast(getString(R.string.download_not_found), Toast.LENGTH_SHORT);
+                }
+            } else {
+                mFileName = downloader.getFileName();
+                forceShowDownloading = true;
+            }
+        } else if (mDownloadId >= 0) {
             Cursor c =
                     mDownloadManager.query(new DownloadManager.Query().setFilterById(mDownloadId));
             if (c == null || !c.moveToFirst()) {
@@ -466,6 +613,8 @@ public class UpdaterActivity extends PreferenceActivity implements
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
         registerReceiver(mReceiver, filter);
 
+        prewarmConnections();
+
         checkForDownloadCompleted(getIntent());
         setIntent(null);
 
@@ -507,6 +656,38 @@ public class UpdaterActivity extends PreferenceActivity implements
             return;
         }
 
+        final DownloadPolicy policy = new DownloadPolicy(this);
+        // What is scheduled is only dropped once the user actually takes over
+        DownloadPolicy.Constraint constraint = policy.getBlockingConstraint(ui, false);
+        if (constraint != null) {
+            final UpdateInfo update = ui;
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.download_deferred_title)
+                    .setMessage(constraint.getMessage())
+                    .setPositiveButton(R.string.download_schedule_button,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    policy.cancel();
+                                    policy.schedule(update);
+                                    showToast(getString(R.string.download_scheduled), Toast.LENGTH_SHORT);
+                                }
+                            })
+                    .setNeutralButton(R.string.download_now_button,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    confirmMobileDataDownload();
+                                }
+                            })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+        } else {
+            confirmMobileDataDownload();
+        }
+    }
+
+    private void confirmMobileDataDownload() {
         if (mPrefs.getBoolean(Constants.MOBILE_DATA_WARNING_PREF, true) && Utils.isOnMobileData(this)) {
             View checkboxView = LayoutInflater.from(this).inflate(R.layout.checkbox_view, null);
             final CheckBox checkbox = (CheckBox) checkboxView.findViewById(R.id.checkbox);
@@ -544,6 +725,8 @@ public class UpdaterActivity extends PreferenceActivity implements
             return;
         }
 
+        // The user takes over whatever was scheduled
+        new DownloadPolicy(this).cancel();
         startDownload();
     }
 
@@ -585,7 +768,7 @@ public class UpdaterActivity extends PreferenceActivity implements
             return;
         }
 
-        new AlertDialog.Builder(this)
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
                 .setTitle(R.string.confirm_download_cancel_dialog_title)
                 .setMessage(R.string.confirm_download_cancel_dialog_message)
                 .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
@@ -593,9 +776,19 @@ public class UpdaterActivity extends PreferenceActivity implements
                     public void onClick(DialogInterface dialog, int which) {
                         // Set the preference back to new style
                         pref.setStyle(UpdatePreference.STYLE_NEW);
+                        new DownloadPolicy(UpdaterActivity.this).decline(mFileName);
 
                         // We are OK to stop download, trigger it
-                        mDownloadManager.remove(mDownloadId);
+                        if (mDownloadId == Constants.SEGMENTED_DOWNLOAD_ID) {
+                            SegmentedDownloader downloader = SegmentedDownloader.getActive();
+                            if (downloader != null && downloader.isRunning()) {
+                                downloader.cancel();
+                            } else {
+                                DownloadService.discard(pref.getUpdateInfo());
+                            }
+                        } else {
+                            mDownloadManager.remove(mDownloadId);
+                        }
                         mUpdateHandler.removeCallbacks(mUpdateProgress);
                         resetDownloadState();
 
@@ -607,8 +800,24 @@ public class UpdaterActivity extends PreferenceActivity implements
                         showToast(getString(R.string.download_cancelled), Toast.LENGTH_SHORT);
                     }
                 })
-                .setNegativeButton(android.R.string.cancel, null)
-                .show();
+                .setNegativeButton(android.R.string.cancel, null);
+        final SegmentedDownloader downloader = SegmentedDownloader.getActive();
+        if (mDownloadId == Constants.SEGMENTED_DOWNLOAD_ID && downloader != null && downloader.isRunning()) {
+            builder.setNeutralButton(R.string.pause_button, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    // Keep what was downloaded, the download button resumes it
+                    downloader.pause();
+                    mUpdateHandler.removeCallbacks(mUpdateProgress);
+                    pref.setStyle(UpdatePreference.STYLE_PAUSED);
+                    resetDownloadState();
+                    mPrefs.edit()
+                            .remove(Constants.DOWNLOAD_ID)
+                            .apply();
+                }
+            });
+        }
+        builder.show();
     }
 
     void checkForDownloadCompleted(Intent intent) {
@@ -643,9 +852,10 @@ public class UpdaterActivity extends PreferenceActivity implements
 
             if (zipFileToDelete.exists()) {
                 zipFileToDelete.delete();
-            } else {
+            } else if (!DownloadService.discard(pref.getUpdateInfo())) {
                 return;
             }
+            new DownloadPolicy(this).decline(fileName);
 
             showToast(getString(R.string.delete_update_success_message, fileName), Toast.LENGTH_SHORT);
         } else {
@@ -819,22 +1029,20 @@ public class UpdaterActivity extends PreferenceActivity implements
 
     private static class updateTask extends AsyncTask<Void, Void, Boolean> {
         private final WeakReference<UpdaterActivity> mActivityRef;
+        private final Context mContext;
         private final UpdateInfo mUpdateInfo;
         private File updateFile;
 
         updateTask(UpdaterActivity activity, UpdateInfo updateInfo) {
             mUpdateInfo = updateInfo;
             mActivityRef = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
         }
 
         @Override
         protected Boolean doInBackground(final Void... params) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ignored) {
-            }
             updateFile = new File(Utils.makeUpdateFolder().getPath() + "/" + mUpdateInfo.getFileName());
-            return MD5.checkMD5(mUpdateInfo.getMD5(), updateFile);
+            return MD5.checkMD5(mContext, mUpdateInfo.getMD5(), updateFile);
         }
 
         @Override
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.misc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checksums of the fixed size blocks of an update, published next to it so
+ * blocks already present in local files don't have to be downloaded.
+ * <p/>
+ * The map starts with {@link #MAGIC}, the block size and the size of the
+ * update, followed for each block by its rolling checksum, as computed by
+ * {@link #checksum(byte[], int, int)}, and its MD5.
+ */
+public class BlockMap {
+    private static final byte[] MAGIC = "OTABMAP1".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    private static final int FILTER_SIZE = 1 << 16;
+
+    private final int mBlockSize;
+    private final long mLength;
+    private final int[] mChecksums;
+    private final byte[][] mDigests;
+    private final Map<Integer, int[]> mBlocksByChecksum = new HashMap<>();
+    // Cheap first test, most positions of a file match no block at all
+    private final boolean[] mFilter = new boolean[FILTER_SIZE];
+
+    private BlockMap(int blockSize, long length, int[] checksums, byte[][] digests) {
+        mBlockSize = blockSize;
+        mLength = length;
+        mChecksums = checksums;
+        mDigests = digests;
+        for (int i = 0; i < checksums.length; i++) {
+            if (getBlockLength(i) != blockSize) {
+                // Never matched by a full size window
+                continue;
+            }
+            int[] blocks = mBlocksByChecksum.get(checksums[i]);
+            if (blocks == null) {
+                blocks = new int[]{i};
+            } else {
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = i;
+            }
+            mBlocksByChecksum.put(checksums[i], blocks);
+            mFilter[filterIndex(checksums[i])] = true;
+        }
+    }
+
+    public static BlockMap parse(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a block map");
+        }
+        int blockSize = data.readInt();
+        long length = data.readLong();
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || length < 0) {
+            throw new IOException("Invalid block map header");
+        }
+        long count = (length + blockSize - 1) / blockSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many blocks");
+        }
+        int[] checksums = new int[(int) count];
+        byte[][] digests = new byte[(int) count][];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = data.readInt();
+            digests[i] = new byte[16];
+            data.readFully(digests[i]);
+        }
+        return new BlockMap(blockSize, length, checksums, digests);
+    }
+
+    /**
+     * Rolling checksum of rsync: the low 16 bits are the sum of the bytes, the
+     * high 16 bits the sum of the running sums
+     */
+    public static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Slide a checksum of blockSize bytes by one byte
+     */
+    public static int roll(int checksum, int blockSize, byte out, byte in) {
+        int a = (checksum - (out & 0xff) + (in & 0xff)) & 0xffff;
+        int b = ((checksum >>> 16) - blockSize * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    private static int filterIndex(int checksum) {
+        return (checksum ^ (checksum >>> 16)) & (FILTER_SIZE - 1);
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Get the size of the update
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public int getBlockCount() {
+        return mChecksums.length;
+    }
+
+    public long getBlockStart(int block) {
+        return (long) block * mBlockSize;
+    }
+
+    public int getBlockLength(int block) {
+        return (int) Math.min(mBlockSize, mLength - getBlockStart(block));
+    }
+
+    /**
+     * Get the full size blocks with the given rolling checksum, or null
+     */
+    public int[] getCandidates(int checksum) {
+        if (!mFilter[filterIndex(checksum)]) {
+            return null;
+        }
+        return mBlocksByChecksum.get(checksum);
+    }
+
+    public boolean matches(int block, byte[] digest) {
+        return Arrays.equals(mDigests[block], digest);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.misc;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds listed by a manifest, indexed by build timestamp.
+ * Only builds newer than the installed one are retained. Of those, the newest
+ * build offered to every device is kept, since no older build can be picked
+ * over it, along with at most {@link #MAX_BUILDS} builds newer than it still in
+ * a staged rollout, so memory stays bounded however long the manifest is.
+ * Builds held back by their rollout don't push out the one that isn't.
+ */
+public class BuildIndex implements Serializable {
+    public static final int MAX_BUILDS = 16;
+
+    private final TreeMap<Long, UpdateInfo> mBuilds = new TreeMap<>();
+
+    /**
+     * Add a build, returns false if it was not retained
+     */
+    public boolean add(UpdateInfo build) {
+        if (!build.isNewerThanInstalled()) {
+            return false;
+        }
+        long timestamp = build.getDateTimestamp();
+        if (mBuilds.containsKey(timestamp)) {
+            // First entry listed for a timestamp wins
+            return false;
+        }
+        Map.Entry<Long, UpdateInfo> oldest = mBuilds.firstEntry();
+        if (oldest != null && oldest.getValue().isFullyRolledOut() && timestamp < oldest.getKey()) {
+            // Never picked over a build offered to every device
+            return false;
+        }
+        mBuilds.put(timestamp, build);
+        if (build.isFullyRolledOut()) {
+            mBuilds.headMap(timestamp).clear();
+        } else if (getStagedCount() > MAX_BUILDS) {
+            // Evict the oldest build in a staged rollout
+            for (Map.Entry<Long, UpdateInfo> entry : mBuilds.entrySet()) {
+                if (!entry.getValue().isFullyRolledOut()) {
+                    mBuilds.remove(entry.getKey());
+                    return entry.getValue() != build;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of builds in a staged rollout, all newer than any other
+     */
+    private int getStagedCount() {
+        Map.Entry<Long, UpdateInfo> oldest = mBuilds.firstEntry();
+        boolean hasFull = oldest != null && oldest.getValue().isFullyRolledOut();
+        return hasFull ? mBuilds.size() - 1 : mBuilds.size();
+    }
+
+    /**
+     * Add the builds of another index, on equal timestamps ours are kept
+     */
+    public void addAll(BuildIndex other) {
+        for (UpdateInfo build : other.mBuilds.values()) {
+            add(build);
+        }
+    }
+
+    /**
+     * Tag all builds as published on the given channel
+     */
+    public void setChannel(String channel) {
+        for (UpdateInfo build : mBuilds.values()) {
+            build.setChannel(channel);
+        }
+    }
+
+    public int size() {
+        return mBuilds.size();
+    }
+
+    public boolean isEmpty() {
+        return mBuilds.isEmpty();
+    }
+
+    /**
+     * Get the newest build that can be installed over the running one, or null
+     */
+    public UpdateInfo selectBest() {
+        return selectBest(null);
+    }
+
+    /**
+     * Get the newest build that can be installed over the running one and
+     * that is accepted by the given filter, or null
+     */
+    public UpdateInfo selectBest(Filter filter) {
+        for (Map.Entry<Long, UpdateInfo> entry : mBuilds.descendingMap().entrySet()) {
+            UpdateInfo build = entry.getValue();
+            if (build.isNewerThanInstalled() && (filter == null || filter.accept(build))) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    public interface Filter {
+        boolean accept(UpdateInfo build);
+    }
+}
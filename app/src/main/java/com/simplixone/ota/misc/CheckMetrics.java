@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.misc;
+
+import android.content.Intent;
+
+/**
+ * Measurements of a single update check, attached to ACTION_CHECK_FINISHED
+ */
+public class CheckMetrics {
+    public static final String EXTRA_RETRY_COUNT = "metrics_retry_count";
+    public static final String EXTRA_LATENCY = "metrics_latency";
+    public static final String EXTRA_ERROR_CLASS = "metrics_error_class";
+    public static final String EXTRA_SOURCE = "metrics_source";
+    public static final String EXTRA_NETWORK_TYPE = "metrics_network_type";
+    public static final String EXTRA_TIMEOUT = "metrics_timeout";
+    public static final String EXTRA_RESPONSE_TIME = "metrics_response_time";
+    public static final String EXTRA_WIRE_BYTES = "metrics_wire_bytes";
+    public static final String EXTRA_DECODED_BYTES = "metrics_decoded_bytes";
+
+    private int mRetryCount;
+    private long mLatency;
+    private String mErrorClass;
+    private String mSource;
+    private String mNetworkType;
+    private int mTimeout;
+    private long mResponseTime = -1;
+    private long mWireBytes;
+    private long mDecodedBytes;
+
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        mRetryCount = retryCount;
+    }
+
+    /**
+     * Get the time from the start of the check to its result, in milliseconds
+     */
+    public long getLatency() {
+        return mLatency;
+    }
+
+    public void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Get the class of the last error met, or null
+     */
+    public String getErrorClass() {
+        return mErrorClass;
+    }
+
+    public void setErrorClass(String errorClass) {
+        mErrorClass = errorClass;
+    }
+
+    /**
+     * Get the url that answered, null when served from the cache
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+    public void setSource(String source) {
+        mSource = source;
+    }
+
+    public String getNetworkType() {
+        return mNetworkType;
+    }
+
+    public void setNetworkType(String networkType) {
+        mNetworkType = networkType;
+    }
+
+    /**
+     * Get the request timeout used last, in milliseconds
+     */
+    public int getTimeout() {
+        return mTimeout;
+    }
+
+    public void setTimeout(int timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Get the time the request that answered took, in milliseconds, or -1
+     */
+    public long getResponseTime() {
+        return mResponseTime;
+    }
+
+    public void setResponseTime(long responseTime) {
+        mResponseTime = responseTime;
+    }
+
+    /**
+     * Get the manifest bytes transferred, as compressed on the wire
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * Get the manifest bytes once decompressed
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    public void setTransferSize(long wireBytes, long decodedBytes) {
+        mWireBytes = wireBytes;
+        mDecodedBytes = decodedBytes;
+    }
+
+    public void putExtras(Intent intent) {
+        intent.putExtra(EXTRA_RETRY_COUNT, mRetryCount);
+        intent.putExtra(EXTRA_LATENCY, mLatency);
+        intent.putExtra(EXTRA_TIMEOUT, mTimeout);
+        intent.putExtra(EXTRA_RESPONSE_TIME, mResponseTime);
+        if (mNetworkType != null) {
+            intent.putExtra(EXTRA_NETWORK_TYPE, mNetworkType);
+        }
+        intent.putExtra(EXTRA_WIRE_BYTES, mWireBytes);
+        intent.putExtra(EXTRA_DECODED_BYTES, mDecodedBytes);
+        if (mErrorClass != null) {
+            intent.putExtra(EXTRA_ERROR_CLASS, mErrorClass);
+        }
+        if (mSource != null) {
+            intent.putExtra(EXTRA_SOURCE, mSource);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CheckMetrics: retries=" + mRetryCount + " latency=" + mLatency + "ms"
+                + (mErrorClass != null ? " error=" + mErrorClass : "")
+                + " source=" + (mSource != null ? mSource : "cache")
+                + " network=" + mNetworkType + " timeout=" + mTimeout + "ms"
+                + " response=" + mResponseTime + "ms"
+                + " bytes=" + mWireBytes + "/" + mDecodedBytes;
+    }
+}
@@ -18,6 +18,8 @@ public class Constants {
     public static final String DOWNLOAD_ID = "download_id";
     public static final String DOWNLOAD_NAME = "download_name";
     public static final String DOWNLOAD_TMP_EXT = ".tmp";
+    public static final String DOWNLOAD_PART_EXT = ".part";
+    public static final String DOWNLOAD_DELTA_EXT = ".delta";
     public static final String DOWNLOAD_CHANNEL_ID = "com.simplixone.ota.DOWNLOAD_CHANNEL";
     public static final String DOWNLOADING_CHANNEL_ID = "com.simplixone.ota.DOWNLOADING_CHANNEL";
     // Preferences
@@ -27,13 +29,78 @@ public class Constants {
     public static final String WIPE_CACHE_PREF = "pref_wipe_cache";
     public static final String WIPE_DALVIK_PREF = "pref_wipe_dalvik";
     public static final String WIPE_DATA_PREF = "pref_wipe_data";
+    public static final String CONDITIONAL_CHECK_PREF = "pref_conditional_check";
+    public static final String MANIFEST_CACHE_TTL_PREF = "pref_manifest_cache_ttl";
+    public static final String CHECK_UNMETERED_ONLY_PREF = "pref_check_unmetered_only";
+    public static final String CHECK_CHARGING_ONLY_PREF = "pref_check_charging_only";
+    public static final String CHECK_IDLE_ONLY_PREF = "pref_check_idle_only";
+    public static final String CHECK_FAILURES_PREF = "pref_check_failures";
+    public static final String NEXT_CHECK_DUE_PREF = "pref_next_check_due";
+    public static final String CHECK_RETRY_AFTER_PREF = "pref_check_retry_after";
+    public static final String ROLLOUT_ID_PREF = "pref_rollout_id";
+    public static final String CATCH_UP_PENDING_PREF = "pref_catch_up_pending";
+    public static final String LAST_CATCH_UP_PREF = "pref_last_catch_up";
+    public static final String LAST_CHECK_RESULT_PREF = "pref_last_check_result";
+    public static final String UPDATE_CHANNELS_PREF = "pref_update_channels";
+    public static final String PUSH_UPDATES_PREF = "pref_push_updates";
+    public static final String PUSH_LAST_EVENT_ID_PREF = "pref_push_last_event_id";
+    public static final String RESPONSE_TIME_PREF_PREFIX = "pref_response_time_";
+    public static final String MANIFEST_LATENCIES_PREF = "pref_manifest_latencies";
+    public static final String DOWNLOAD_ENGINE_PREF = "pref_download_engine";
+    public static final String DOWNLOAD_MD5_PREF_PREFIX = "pref_download_md5_";
+    public static final String DOWNLOAD_UNMETERED_ONLY_PREF = "pref_download_unmetered_only";
+    public static final String DOWNLOAD_CHARGING_ONLY_PREF = "pref_download_charging_only";
+    public static final String DOWNLOAD_MIN_BATTERY_PREF = "pref_download_min_battery";
+    public static final String DOWNLOAD_QUIET_HOURS_PREF = "pref_download_quiet_hours";
+    public static final String DOWNLOAD_OFF_PEAK_PREF = "pref_download_off_peak";
+    public static final String SCHEDULED_DOWNLOAD_PREF = "pref_scheduled_download";
+    public static final String SCHEDULED_DOWNLOAD_PREFETCH_PREF = "pref_scheduled_download_prefetch";
+    public static final String SCHEDULED_DOWNLOAD_FAILURES_PREF = "pref_scheduled_download_failures";
+    public static final String PREFETCH_UPDATES_PREF = "pref_prefetch_updates";
+    public static final String DECLINED_PREFETCH_PREF = "pref_declined_prefetch";
     // Automatic update checking
     public static final long UPDATE_DEFAULT_FREQ = AlarmManager.INTERVAL_HALF_DAY;
+    public static final int UPDATE_CHECK_JOB_ID = 0;
+    public static final boolean CHECK_UNMETERED_ONLY_DEFAULT = false;
+    public static final boolean CHECK_CHARGING_ONLY_DEFAULT = false;
+    public static final boolean CHECK_IDLE_ONLY_DEFAULT = false;
+    // Push notification of new builds
+    public static final int UPDATE_PUSH_JOB_ID = 1;
+    public static final boolean PUSH_UPDATES_DEFAULT = false;
+    // Download engines
+    public static final String DOWNLOAD_ENGINE_DOWNLOAD_MANAGER = "download_manager";
+    public static final String DOWNLOAD_ENGINE_SEGMENTED = "segmented";
+    public static final String DOWNLOAD_ENGINE_DEFAULT = DOWNLOAD_ENGINE_SEGMENTED;
+    public static final int DOWNLOAD_CONNECTIONS = 4;
+    // Download policy, quiet hours are "<start hour>-<end hour>" in local time
+    public static final int DOWNLOAD_JOB_ID = 2;
+    public static final boolean DOWNLOAD_UNMETERED_ONLY_DEFAULT = false;
+    public static final boolean DOWNLOAD_CHARGING_ONLY_DEFAULT = false;
+    public static final String DOWNLOAD_MIN_BATTERY_DEFAULT = "0";
+    public static final String DOWNLOAD_QUIET_HOURS_DEFAULT = "";
+    public static final boolean DOWNLOAD_OFF_PEAK_DEFAULT = false;
+    public static final boolean PREFETCH_UPDATES_DEFAULT = false;
+    // Stands for the download id of downloads not run by DownloadManager
+    public static final long SEGMENTED_DOWNLOAD_ID = Long.MAX_VALUE;
+    // Update channels
+    public static final String CHANNEL_STABLE = "stable";
+    // Manifest cache
+    public static final boolean CONDITIONAL_CHECK_DEFAULT = true;
+    public static final long MANIFEST_CACHE_TTL_DEFAULT = AlarmManager.INTERVAL_DAY;
     // Build vars
     public static final String CURRENT_DEVICE_NAME = "com.simplixone.device";
     public static final String CURRENT_VERSION = "com.simplixone.version";
     public static final String OTA_URL = "https://raw.githubusercontent.com/simplixone-devices/official_devices/master/%s/%s.json";
+    // Other channels than stable publish <version code>-<channel>.json next to it
+    public static final String OTA_CHANNEL_SUFFIX = "-%s";
     public static final String OTA_VERSION_CODE = "com.simplixone.ota.version_code";
+    public static final String OTA_SERVER = "com.simplixone.ota.server";
+    public static final String OTA_MIRRORS = "com.simplixone.ota.mirrors";
+    // Server-sent events stream of a device, push mode is off when unset
+    public static final String OTA_PUSH_URL = "com.simplixone.ota.push_url";
+    public static final String[] OTA_MIRROR_URLS = {
+            "https://cdn.jsdelivr.net/gh/simplixone-devices/official_devices@master/%s/%s.json"
+    };
     // Expressions
     public static final String FILENAME_DATE_FORMAT = "yyyyMMdd-Hm";
     public static final String PATTERN_FILENAME_DATE_FORMAT = "(\\d{4}\\d{2}\\d{2}-\\d{2}\\d{2})";
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.misc;
+
+import android.util.Log;
+
+import com.simplixone.ota.utils.IncrementalMD5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Progress of a partial download, kept next to the partial file so the
+ * download can resume after a pause, a crash or a reboot. Only byte ranges
+ * known to be on disk are recorded, along with the digest of the beginning
+ * of the file hashed so far.
+ */
+public class DownloadCheckpoint implements Serializable {
+    private static final String TAG = "DownloadCheckpoint";
+    public static final String EXT = ".ckpt";
+
+    private final String mUrl;
+    private final String mValidator;
+    private final long mTotal;
+    private final long[] mStarts;
+    private final long[] mPositions;
+    private final long[] mEnds;
+    private final IncrementalMD5 mDigest;
+
+    /**
+     * @param validator strong ETag or Last-Modified of the file, to resume with If-Range
+     * @param starts    start of each segment
+     * @param positions bytes of each segment written up to there
+     * @param ends      end of each segment, exclusive
+     * @param digest    digest of the first bytes of the file, or null
+     */
+    public DownloadCheckpoint(String url, String validator, long total,
+                              long[] starts, long[] positions, long[] ends, IncrementalMD5 digest) {
+        mUrl = url;
+        mValidator = validator;
+        mTotal = total;
+        mStarts = starts;
+        mPositions = positions;
+        mEnds = ends;
+        mDigest = digest;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Get the digest of the first {@link IncrementalMD5#getCount()} bytes, or null
+     */
+    public IncrementalMD5 getDigest() {
+        return mDigest;
+    }
+
+    public int getSegmentCount() {
+        return mStarts.length;
+    }
+
+    public long getStart(int segment) {
+        return mStarts[segment];
+    }
+
+    public long getPosition(int segment) {
+        return mPositions[segment];
+    }
+
+    public long getEnd(int segment) {
+        return mEnds[segment];
+    }
+
+    /**
+     * Get how many bytes of the file are already on disk
+     */
+    public long getDownloadedBytes() {
+        long remaining = 0;
+        for (int i = 0; i < mStarts.length; i++) {
+            remaining += mEnds[i] - mPositions[i];
+        }
+        return mTotal - remaining;
+    }
+
+    public static File getFile(File partFile) {
+        return new File(partFile.getPath() + EXT);
+    }
+
+    public static boolean exists(File partFile) {
+        return partFile.isFile() && getFile(partFile).isFile();
+    }
+
+    public static void delete(File partFile) {
+        getFile(partFile).delete();
+    }
+
+    /**
+     * Save the checkpoint of the given partial file, replacing the previous
+     * one only once completely written
+     */
+    public static void save(File partFile, DownloadCheckpoint checkpoint) {
+        File f = getFile(partFile);
+        File tmp = new File(f.getPath() + Constants.DOWNLOAD_TMP_EXT);
+        ObjectOutputStream oos = null;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            oos = new ObjectOutputStream(fos);
+            oos.writeObject(checkpoint);
+            oos.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving download checkpoint", e);
+            return;
+        } finally {
+            try {
+                if (oos != null) {
+                    oos.close();
+                }
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        if (!tmp.renameTo(f)) {
+            Log.e(TAG, "Unable to replace download checkpoint");
+        }
+    }
+
+    /**
+     * Load the checkpoint of the given partial file, only if it downloads the given url
+     */
+    public static DownloadCheckpoint load(File partFile, String url) {
+        DownloadCheckpoint checkpoint = null;
+        ObjectInputStream ois = null;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(getFile(partFile));
+            ois = new ObjectInputStream(fis);
+
+            Object o = ois.readObject();
+            if (o instanceof DownloadCheckpoint && url.equals(((DownloadCheckpoint) o).mUrl)) {
+                checkpoint = (DownloadCheckpoint) o;
+            }
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "Unable to load stored class", e);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No download checkpoint");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading download checkpoint", e);
+        } finally {
+            try {
+                if (ois != null) {
+                    ois.close();
+                }
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return checkpoint;
+    }
+}
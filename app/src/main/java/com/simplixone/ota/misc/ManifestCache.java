@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.misc;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Last manifest fetched from the OTA server, together with the HTTP
+ * validators needed to revalidate it with a conditional request.
+ * Each manifest url, e.g. of each update channel, is cached separately.
+ */
+public class ManifestCache implements Serializable {
+    private static final String TAG = "ManifestCache";
+    private static final String FILENAME = "manifest-%08x.cache";
+
+    private String mUrl;
+    private String mSourceUrl;
+    private String mETag;
+    private String mLastModified;
+    private String mContentHash;
+    private long mFetchedAt;
+    private BuildIndex mBuilds;
+
+    /**
+     * @param url       the primary url of the manifest, used as cache key
+     * @param sourceUrl the url the manifest was actually served from
+     * @param contentHash md5 of the manifest body
+     */
+    public ManifestCache(String url, String sourceUrl, String eTag, String lastModified,
+                         String contentHash, BuildIndex builds) {
+        mUrl = url;
+        mSourceUrl = sourceUrl;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mContentHash = contentHash;
+        mBuilds = builds;
+        mFetchedAt = System.currentTimeMillis();
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getSourceUrl() {
+        return mSourceUrl;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    public long getFetchedAt() {
+        return mFetchedAt;
+    }
+
+    public BuildIndex getBuilds() {
+        return mBuilds;
+    }
+
+    /**
+     * Mark the cached manifest as just revalidated by the server
+     */
+    public void touch() {
+        mFetchedAt = System.currentTimeMillis();
+    }
+
+    public boolean isFresh(long ttl) {
+        long age = System.currentTimeMillis() - mFetchedAt;
+        return age >= 0 && age <= ttl;
+    }
+
+    private static File getFile(Context context, String url) {
+        return new File(context.getCacheDir(), String.format(FILENAME, url.hashCode()));
+    }
+
+    public static void save(Context context, ManifestCache cache) {
+        ObjectOutputStream oos = null;
+        FileOutputStream fos = null;
+        try {
+            File f = getFile(context, cache.mUrl);
+            fos = new FileOutputStream(f);
+            oos = new ObjectOutputStream(fos);
+            oos.writeObject(cache);
+            oos.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving manifest cache", e);
+        } finally {
+            try {
+                if (oos != null) {
+                    oos.close();
+                }
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+    }
+
+    /**
+     * Load the cached manifest, only if it was fetched from the given url
+     */
+    public static ManifestCache load(Context context, String url) {
+        ManifestCache cache = null;
+        ObjectInputStream ois = null;
+        FileInputStream fis = null;
+        try {
+            File f = getFile(context, url);
+            fis = new FileInputStream(f);
+            ois = new ObjectInputStream(fis);
+
+            Object o = ois.readObject();
+            if (o instanceof ManifestCache && url.equals(((ManifestCache) o).mUrl)) {
+                cache = (ManifestCache) o;
+            }
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "Unable to load stored class", e);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No manifest cached");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading manifest cache", e);
+        } finally {
+            try {
+                if (ois != null) {
+                    ois.close();
+                }
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return cache;
+    }
+}
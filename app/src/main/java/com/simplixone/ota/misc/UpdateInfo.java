@@ -16,9 +16,6 @@ import android.text.TextUtils;
 
 import com.simplixone.ota.utils.Utils;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,11 +32,22 @@ public class UpdateInfo implements Parcelable, Serializable {
             return new UpdateInfo[size];
         }
     };
+    // Keys of a delta package description
+    public static final String DELTA_BASE_VERSION = "base_version";
+    public static final String DELTA_BASE_BUILD_DATE = "base_build_date";
+    public static final String DELTA_BASE_FILENAME = "base_filename";
+    public static final String DELTA_BASE_MD5 = "base_md5";
+    public static final String DELTA_URL = "url";
+    public static final String DELTA_FILESIZE = "filesize";
+    public static final String DELTA_MD5 = "md5";
+    private static final String[] DELTA_KEYS = {DELTA_BASE_VERSION, DELTA_BASE_BUILD_DATE,
+            DELTA_BASE_FILENAME, DELTA_BASE_MD5, DELTA_URL, DELTA_FILESIZE, DELTA_MD5};
+
     private String mFileName;
     private long mFileSize;
     private String mBuildDate;
     private String mDownloadUrl;
-    private String mChangelog;
+    private String mChangelogUrl;
     private String mDonateUrl;
     private String mForumUrl;
     private String mWebsiteUrl;
@@ -47,8 +55,17 @@ public class UpdateInfo implements Parcelable, Serializable {
     private String mDeveloper;
     private String mDeveloperUrl;
     private String mMD5;
-    private String mAddons;
-    private Boolean mIsNewerThanInstalled;
+    private ArrayList<HashMap<String, String>> mAddons = new ArrayList<>();
+    private int mRolloutPercentage = 100;
+    private long mRolloutStart;
+    private long[] mRolloutStepOffsets;
+    private int[] mRolloutStepPercentages;
+    private String mChangelogMD5;
+    private String mChannel;
+    private ArrayList<HashMap<String, String>> mDeltas = new ArrayList<>();
+    private String mBlockMapUrl;
+    private int[] mOffPeakHours;
+    private transient Boolean mIsNewerThanInstalled;
 
     private UpdateInfo() {
         // Use the builder
@@ -82,7 +99,7 @@ public class UpdateInfo implements Parcelable, Serializable {
     /**
      * Get build date in timestamp format
      */
-    private long getDateTimestamp() {
+    public long getDateTimestamp() {
         String buildDate = mBuildDate;
         if (buildDate.length() == 8) {
             buildDate = buildDate + "-0000";
@@ -98,10 +115,10 @@ public class UpdateInfo implements Parcelable, Serializable {
     }
 
     /**
-     * Get changelog
+     * Get changelog url
      */
-    public String getChangelog() {
-        return mChangelog;
+    public String getChangelogUrl() {
+        return mChangelogUrl;
     }
 
     /**
@@ -157,32 +174,111 @@ public class UpdateInfo implements Parcelable, Serializable {
      * Get addons list
      */
     public List<Map<String, String>> getAddons() {
-        List<Map<String, String>> addons = new ArrayList<>();
-        try {
-            JSONArray addonsListJson = new JSONArray(mAddons);
-            int length = addonsListJson.length();
-            for (int i = 0; i < length; i++) {
-                if (addonsListJson.isNull(i)) {
-                    continue;
+        return new ArrayList<Map<String, String>>(mAddons);
+    }
+
+    /**
+     * Get the share of devices, in percent, the build is rolled out to
+     */
+    public int getRolloutPercentage() {
+        return mRolloutPercentage;
+    }
+
+    /**
+     * Whether the build is offered to every device, whatever the time
+     */
+    public boolean isFullyRolledOut() {
+        boolean ramped = mRolloutStepOffsets != null && mRolloutStepPercentages != null
+                && mRolloutStepOffsets.length > 0;
+        return !ramped && mRolloutPercentage >= 100;
+    }
+
+    /**
+     * Get rollout start in timestamp format, 0 when it starts with the build date
+     */
+    public long getRolloutStart() {
+        return mRolloutStart;
+    }
+
+    /**
+     * Get the offsets, in seconds from the rollout start, of the ramp steps
+     */
+    public long[] getRolloutStepOffsets() {
+        return mRolloutStepOffsets;
+    }
+
+    /**
+     * Get the rollout percentage of each ramp step
+     */
+    public int[] getRolloutStepPercentages() {
+        return mRolloutStepPercentages;
+    }
+
+    /**
+     * Get md5 of the changelog
+     */
+    public String getChangelogMD5() {
+        return mChangelogMD5;
+    }
+
+    /**
+     * Get the channel the build was published on
+     */
+    public String getChannel() {
+        return mChannel;
+    }
+
+    void setChannel(String channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Get the delta packages listed for the build, each against another base build
+     */
+    public List<Map<String, String>> getDeltas() {
+        return new ArrayList<Map<String, String>>(mDeltas);
+    }
+
+    /**
+     * Get the delta package applying to the installed build, or null if none
+     */
+    public Map<String, String> getDelta() {
+        String installedVersion = Utils.getInstalledVersion();
+        long installedBuildDate = Utils.getInstalledBuildDate();
+        for (Map<String, String> delta : mDeltas) {
+            String baseVersion = delta.get(DELTA_BASE_VERSION);
+            if (!TextUtils.isEmpty(baseVersion)) {
+                if (baseVersion.equals(installedVersion)) {
+                    return delta;
+                }
+                continue;
+            }
+            String baseBuildDate = delta.get(DELTA_BASE_BUILD_DATE);
+            if (!TextUtils.isEmpty(baseBuildDate) && installedBuildDate > 0) {
+                if (baseBuildDate.length() == 8) {
+                    baseBuildDate = baseBuildDate + "-0000";
+                }
+                if (Utils.getTimestampFromDateString(baseBuildDate,
+                        Constants.FILENAME_DATE_FORMAT) == installedBuildDate) {
+                    return delta;
                 }
-                JSONObject addon = addonsListJson.getJSONObject(i);
-                Map<String, String> map = new HashMap<>();
-                map.put("title", addon.getString("title"));
-                map.put("summary", addon.getString("summary"));
-                map.put("url", addon.getString("url"));
-                addons.add(i, map);
             }
-        } catch (Exception ex) {
-            addons = new ArrayList<>();
         }
-        return addons;
+        return null;
     }
 
     /**
-     * Get addons list in json
+     * Get location of the block map of the update, or null
      */
-    public String getAddonsInJson() {
-        return mAddons;
+    public String getBlockMapUrl() {
+        return mBlockMapUrl;
+    }
+
+    /**
+     * Get the start and end hours, in UTC, of each window the server prefers downloads in, or null
+     */
+    public int[] getOffPeakHours() {
+        return mOffPeakHours;
     }
 
     public boolean isNewerThanInstalled() {
@@ -224,7 +320,7 @@ public class UpdateInfo implements Parcelable, Serializable {
     public void writeToParcel(Parcel out, int flags) {
         out.writeString(mFileName);
         out.writeLong(mFileSize);
-        out.writeString(mChangelog);
+        out.writeString(mChangelogUrl);
         out.writeString(mBuildDate);
         out.writeString(mDownloadUrl);
         out.writeString(mDonateUrl);
@@ -234,13 +330,32 @@ public class UpdateInfo implements Parcelable, Serializable {
         out.writeString(mDeveloper);
         out.writeString(mDeveloperUrl);
         out.writeString(mMD5);
-        out.writeString(mAddons);
+        out.writeInt(mAddons.size());
+        for (Map<String, String> addon : mAddons) {
+            out.writeString(addon.get("title"));
+            out.writeString(addon.get("summary"));
+            out.writeString(addon.get("url"));
+        }
+        out.writeInt(mRolloutPercentage);
+        out.writeLong(mRolloutStart);
+        out.writeLongArray(mRolloutStepOffsets);
+        out.writeIntArray(mRolloutStepPercentages);
+        out.writeString(mChangelogMD5);
+        out.writeString(mChannel);
+        out.writeInt(mDeltas.size());
+        for (Map<String, String> delta : mDeltas) {
+            for (String key : DELTA_KEYS) {
+                out.writeString(delta.get(key));
+            }
+        }
+        out.writeString(mBlockMapUrl);
+        out.writeIntArray(mOffPeakHours);
     }
 
     private void readFromParcel(Parcel in) {
         mFileName = in.readString();
         mFileSize = in.readLong();
-        mChangelog = in.readString();
+        mChangelogUrl = in.readString();
         mBuildDate = in.readString();
         mDownloadUrl = in.readString();
         mDonateUrl = in.readString();
@@ -250,7 +365,35 @@ public class UpdateInfo implements Parcelable, Serializable {
         mDeveloper = in.readString();
         mDeveloperUrl = in.readString();
         mMD5 = in.readString();
-        mAddons = in.readString();
+        int addons = in.readInt();
+        mAddons = new ArrayList<>(addons);
+        for (int i = 0; i < addons; i++) {
+            HashMap<String, String> addon = new HashMap<>();
+            addon.put("title", in.readString());
+            addon.put("summary", in.readString());
+            addon.put("url", in.readString());
+            mAddons.add(addon);
+        }
+        mRolloutPercentage = in.readInt();
+        mRolloutStart = in.readLong();
+        mRolloutStepOffsets = in.createLongArray();
+        mRolloutStepPercentages = in.createIntArray();
+        mChangelogMD5 = in.readString();
+        mChannel = in.readString();
+        int deltas = in.readInt();
+        mDeltas = new ArrayList<>(deltas);
+        for (int i = 0; i < deltas; i++) {
+            HashMap<String, String> delta = new HashMap<>();
+            for (String key : DELTA_KEYS) {
+                String value = in.readString();
+                if (value != null) {
+                    delta.put(key, value);
+                }
+            }
+            mDeltas.add(delta);
+        }
+        mBlockMapUrl = in.readString();
+        mOffPeakHours = in.createIntArray();
     }
 
     public static class Builder {
@@ -258,7 +401,7 @@ public class UpdateInfo implements Parcelable, Serializable {
         private long mFileSize;
         private String mBuildDate;
         private String mDownloadUrl;
-        private String mChangelog;
+        private String mChangelogUrl;
         private String mDonateUrl;
         private String mForumUrl;
         private String mWebsiteUrl;
@@ -266,7 +409,16 @@ public class UpdateInfo implements Parcelable, Serializable {
         private String mDeveloper;
         private String mDeveloperUrl;
         private String mMD5;
-        private String mAddons;
+        private List<Map<String, String>> mAddons;
+        private int mRolloutPercentage = 100;
+        private long mRolloutStart;
+        private long[] mRolloutStepOffsets;
+        private int[] mRolloutStepPercentages;
+        private String mChangelogMD5;
+        private String mChannel;
+        private List<Map<String, String>> mDeltas;
+        private String mBlockMapUrl;
+        private int[] mOffPeakHours;
 
         public Builder setFileName(String fileName) {
             mFileName = fileName;
@@ -288,8 +440,8 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
-        public Builder setChangelog(String changelog) {
-            mChangelog = changelog;
+        public Builder setChangelogUrl(String changelogUrl) {
+            mChangelogUrl = changelogUrl;
             return this;
         }
 
@@ -328,18 +480,63 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
-        public Builder setAddons(String addons) {
+        public Builder setAddons(List<Map<String, String>> addons) {
             mAddons = addons;
             return this;
         }
 
+        public Builder setRolloutPercentage(int rolloutPercentage) {
+            mRolloutPercentage = rolloutPercentage;
+            return this;
+        }
+
+        public Builder setRolloutStart(long rolloutStart) {
+            mRolloutStart = rolloutStart;
+            return this;
+        }
+
+        public Builder setRolloutStepOffsets(long[] rolloutStepOffsets) {
+            mRolloutStepOffsets = rolloutStepOffsets;
+            return this;
+        }
+
+        public Builder setRolloutStepPercentages(int[] rolloutStepPercentages) {
+            mRolloutStepPercentages = rolloutStepPercentages;
+            return this;
+        }
+
+        public Builder setChangelogMD5(String changelogMD5) {
+            mChangelogMD5 = changelogMD5;
+            return this;
+        }
+
+        public Builder setChannel(String channel) {
+            mChannel = channel;
+            return this;
+        }
+
+        public Builder setDeltas(List<Map<String, String>> deltas) {
+            mDeltas = deltas;
+            return this;
+        }
+
+        public Builder setBlockMapUrl(String blockMapUrl) {
+            mBlockMapUrl = blockMapUrl;
+            return this;
+        }
+
+        public Builder setOffPeakHours(int[] offPeakHours) {
+            mOffPeakHours = offPeakHours;
+            return this;
+        }
+
         public UpdateInfo build() {
             UpdateInfo info = new UpdateInfo();
             info.mFileName = mFileName;
             info.mFileSize = mFileSize;
             info.mBuildDate = mBuildDate;
             info.mDownloadUrl = mDownloadUrl;
-            info.mChangelog = mChangelog;
+            info.mChangelogUrl = mChangelogUrl;
             info.mDonateUrl = mDonateUrl;
             info.mForumUrl = mForumUrl;
             info.mWebsiteUrl = mWebsiteUrl;
@@ -347,7 +544,24 @@ public class UpdateInfo implements Parcelable, Serializable {
             info.mDeveloper = mDeveloper;
             info.mDeveloperUrl = mDeveloperUrl;
             info.mMD5 = mMD5;
-            info.mAddons = mAddons;
+            if (mAddons != null) {
+                for (Map<String, String> addon : mAddons) {
+                    info.mAddons.add(new HashMap<>(addon));
+                }
+            }
+            info.mRolloutPercentage = mRolloutPercentage;
+            info.mRolloutStart = mRolloutStart;
+            info.mRolloutStepOffsets = mRolloutStepOffsets;
+            info.mRolloutStepPercentages = mRolloutStepPercentages;
+            info.mChangelogMD5 = mChangelogMD5;
+            info.mChannel = mChannel;
+            if (mDeltas != null) {
+                for (Map<String, String> delta : mDeltas) {
+                    info.mDeltas.add(new HashMap<>(delta));
+                }
+            }
+            info.mBlockMapUrl = mBlockMapUrl;
+            info.mOffPeakHours = mOffPeakHours;
             return info;
         }
     }
@@ -31,6 +31,7 @@ import android.widget.TextView;
 import android.support.v4.widget.NestedScrollView;
 
 import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.utils.ChangelogCache;
 import com.simplixone.ota.utils.Utils;
 
 import net.cachapa.expandablelayout.ExpandableLayout;
@@ -46,6 +47,7 @@ public class UpdatePreference extends Preference implements OnLongClickListener
     public static final int STYLE_DOWNLOADING = 2;
     public static final int STYLE_DOWNLOADED = 3;
     public static final int STYLE_COMPLETING = 4;
+    public static final int STYLE_PAUSED = 5;
 
     private OnActionListener mOnActionListener;
     private OnReadyListener mOnReadyListener;
@@ -62,6 +64,7 @@ public class UpdatePreference extends Preference implements OnLongClickListener
     private NestedScrollView expandableChangelogLayoutScrollView;
     private long mUpdateFileSize;
     private String mUpdateChangelog;
+    private TextView mChangelogText;
     private boolean buttonClicked = false;
     private OnClickListener mButtonClickListener = new OnClickListener() {
         @Override
@@ -83,6 +86,7 @@ public class UpdatePreference extends Preference implements OnLongClickListener
                     mOnActionListener.onStopDownload(UpdatePreference.this);
                     break;
                 case STYLE_NEW:
+                case STYLE_PAUSED:
                     mOnActionListener.onStartDownload(UpdatePreference.this);
                     break;
             }
@@ -108,7 +112,6 @@ public class UpdatePreference extends Preference implements OnLongClickListener
     public void onBindView(View view) {
         super.onBindView(view);
         mUpdateFileSize = mUpdateInfo.getFileSize();
-        mUpdateChangelog = mUpdateInfo.getChangelog();
 
         // Store the views from the layout
         TextView mTitleText = view.findViewById(R.id.title);
@@ -124,6 +127,9 @@ public class UpdatePreference extends Preference implements OnLongClickListener
         mChangelogButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (mUpdateChangelog == null && !expandableChangelogLayout.isExpanded()) {
+                    loadChangelog();
+                }
                 expandableChangelogLayout.toggle();
             }
         });
@@ -133,35 +139,9 @@ public class UpdatePreference extends Preference implements OnLongClickListener
                 mChangelogButton.setCompoundDrawablesWithIntrinsicBounds(mContext.getResources().getDrawable(state != 0 ? R.drawable.ic_chevron_up : R.drawable.ic_chevron_down, mContext.getTheme()), null, null, null);
             }
         });
-        TextView mChangelogText = view.findViewById(R.id.changelog_text);
-        if (isChangelogAvailable()) {
-            Pattern p2 = Pattern.compile("\\s+\\*\\s(([\\w_.-]+/)+)");
-            Pattern p3 = Pattern.compile("(\\d\\d\\-\\d\\d\\-\\d{4})");
-            SpannableStringBuilder sb = new SpannableStringBuilder(mUpdateChangelog);
-            Resources.Theme theme = mContext.getTheme();
-            TypedValue typedValue = new TypedValue();
-            theme.resolveAttribute(android.R.attr.colorAccent, typedValue, true);
-            final int color = mContext.getColor(typedValue.resourceId);
-            Matcher m = p2.matcher(mUpdateChangelog);
-            while (m.find()){
-                sb.setSpan(new StyleSpan(Typeface.BOLD),m.start(0), m.end(0), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
-                sb.setSpan(new ForegroundColorSpan(color),m.start(0),m.end(0),Spannable.SPAN_INCLUSIVE_INCLUSIVE);
-            }
-            m = p3.matcher(mUpdateChangelog);
-            while (m.find()){
-                sb.setSpan(new StyleSpan(Typeface.BOLD+ Typeface.ITALIC),m.start(1), m.end(1), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
-            }
-            mChangelogText.setText(sb);
-            mChangelogText.post(new Runnable() {
-                @Override
-                public void run() {
-                    int lineCount = mChangelogText.getLineCount();
-                    int lineHeight = mChangelogText.getLineHeight();
-                    if (lineCount <= 18){
-                        expandableChangelogLayoutScrollView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, lineCount * lineHeight));
-                    }
-                }
-            });
+        mChangelogText = view.findViewById(R.id.changelog_text);
+        if (mUpdateChangelog != null) {
+            showChangelog();
         }
 
         mUpdatesPref = view.findViewById(R.id.updates_pref);
@@ -181,6 +161,7 @@ public class UpdatePreference extends Preference implements OnLongClickListener
     public boolean onLongClick(View v) {
         switch (mStyle) {
             case STYLE_DOWNLOADED:
+            case STYLE_PAUSED:
                 confirmDelete();
                 break;
 
@@ -282,8 +263,56 @@ public class UpdatePreference extends Preference implements OnLongClickListener
         }
     }
 
+    /**
+     * Fetch the changelog, only the first time it is expanded
+     */
+    private void loadChangelog() {
+        mChangelogText.setText(R.string.changelog_loading);
+        ChangelogCache.get(mContext, mUpdateInfo, new ChangelogCache.Callback() {
+            @Override
+            public void onChangelog(String changelog) {
+                if (changelog == null) {
+                    mChangelogText.setText(R.string.changelog_unavailable);
+                    return;
+                }
+                mUpdateChangelog = changelog;
+                showChangelog();
+            }
+        });
+    }
+
+    private void showChangelog() {
+        Pattern p2 = Pattern.compile("\\s+\\*\\s(([\\w_.-]+/)+)");
+        Pattern p3 = Pattern.compile("(\\d\\d\\-\\d\\d\\-\\d{4})");
+        SpannableStringBuilder sb = new SpannableStringBuilder(mUpdateChangelog);
+        Resources.Theme theme = mContext.getTheme();
+        TypedValue typedValue = new TypedValue();
+        theme.resolveAttribute(android.R.attr.colorAccent, typedValue, true);
+        final int color = mContext.getColor(typedValue.resourceId);
+        Matcher m = p2.matcher(mUpdateChangelog);
+        while (m.find()){
+            sb.setSpan(new StyleSpan(Typeface.BOLD),m.start(0), m.end(0), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+            sb.setSpan(new ForegroundColorSpan(color),m.start(0),m.end(0),Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+        m = p3.matcher(mUpdateChangelog);
+        while (m.find()){
+            sb.setSpan(new StyleSpan(Typeface.BOLD+ Typeface.ITALIC),m.start(1), m.end(1), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+        mChangelogText.setText(sb);
+        mChangelogText.post(new Runnable() {
+            @Override
+            public void run() {
+                int lineCount = mChangelogText.getLineCount();
+                int lineHeight = mChangelogText.getLineHeight();
+                if (lineCount <= 18){
+                    expandableChangelogLayoutScrollView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, lineCount * lineHeight));
+                }
+            }
+        });
+    }
+
     private boolean isChangelogAvailable() {
-        return mUpdateChangelog != null && !mUpdateChangelog.equals("");
+        return mUpdateInfo.getChangelogUrl() != null && !mUpdateInfo.getChangelogUrl().equals("");
     }
 
     private void showStyle() {
@@ -321,6 +350,17 @@ public class UpdatePreference extends Preference implements OnLongClickListener
                         Utils.readableFileSize(mUpdateFileSize), mContext.getString(R.string.type_completing)));
                 break;
 
+            case STYLE_PAUSED:
+                mStopDownloadButton.setVisibility(View.GONE);
+                mProgressBar.setVisibility(View.GONE);
+                mButton.setVisibility(View.VISIBLE);
+                mChangelogButton.setVisibility(isChangelogAvailable() ? View.VISIBLE : View.GONE);
+                expandableChangelogLayout.collapse();
+                mSummaryText.setText(String.format("%1$s • %2$s",
+                        Utils.readableFileSize(mUpdateFileSize), mContext.getString(R.string.type_paused)));
+                mButton.setText(mContext.getString(R.string.resume_button));
+                break;
+
             case STYLE_NEW:
             default:
                 mStopDownloadButton.setVisibility(View.GONE);
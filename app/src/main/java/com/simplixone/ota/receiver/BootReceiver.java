@@ -14,18 +14,61 @@ package com.simplixone.ota.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.util.Log;
 
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.misc.State;
+import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.service.DownloadService;
+import com.simplixone.ota.service.UpdatePushService;
 import com.simplixone.ota.utils.UpdateChecker;
 import com.simplixone.ota.utils.Utils;
 
 public class BootReceiver extends BroadcastReceiver {
+    private static final String TAG = "BootReceiver";
 
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
         if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
-            Utils.deleteTempFolder();
-            UpdateChecker.scheduleUpdateService(context, true);
+            // Everyone is busy booting, keep the disk work off the main thread
+            final PendingResult result = goAsync();
+            final Context appContext = context.getApplicationContext();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Utils.deleteTempFolder();
+                        UpdateChecker.scheduleUpdateServiceOnBoot(appContext);
+                        UpdatePushService.schedule(appContext);
+                        resumeInterruptedDownload(appContext);
+                    } finally {
+                        result.finish();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Resume the segmented download the reboot interrupted, if any. Downloads
+     * paused by the user are not running and are left alone.
+     */
+    private static void resumeInterruptedDownload(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getLong(Constants.DOWNLOAD_ID, -1) != Constants.SEGMENTED_DOWNLOAD_ID) {
+            return;
+        }
+        UpdateInfo update = State.loadState(context);
+        if (update != null && update.getFileName().equals(prefs.getString(Constants.DOWNLOAD_NAME, null))
+                && DownloadService.isResumable(update)) {
+            Log.d(TAG, "Resuming interrupted download of " + update.getFileName());
+            DownloadService.start(context, update);
+        } else {
+            prefs.edit().remove(Constants.DOWNLOAD_ID).apply();
         }
     }
 }
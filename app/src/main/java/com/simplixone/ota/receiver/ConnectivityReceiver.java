@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.simplixone.ota.utils.CheckSchedulePolicy;
+
+/**
+ * Woken up by the network callback registered while a catch-up check is
+ * pending, once the device has validated connectivity again.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        new CheckSchedulePolicy(context).onNetworkAvailable();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.simplixone.ota.utils.MD5;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches the changelog of a build as UTF-8 text, checked against the md5
+ * published in the manifest when there is one. Compressed answers are
+ * accepted and decoded.
+ */
+public class ChangelogRequest extends Request<String> {
+    private final Response.Listener<String> mListener;
+    private final String mUserAgent;
+    private final String mMD5;
+
+    public ChangelogRequest(String url, String md5, String userAgent,
+                            Response.Listener<String> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mListener = listener;
+        mUserAgent = userAgent;
+        mMD5 = md5;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>();
+        if (mUserAgent != null) {
+            headers.put("User-Agent", mUserAgent);
+        }
+        ContentEncoding.addHeaders(headers);
+        return headers;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+        byte[] data;
+        try {
+            data = IOUtils.toByteArray(ContentEncoding.decode(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+        if (mMD5 != null && !mMD5.equalsIgnoreCase(MD5.calculateMD5(data))) {
+            return Response.error(new ParseError(new Exception("Changelog md5 mismatch")));
+        }
+        return Response.success(new String(data, StandardCharsets.UTF_8),
+                HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Override
+    protected void deliverResponse(String response) {
+        mListener.onResponse(response);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed transfer of manifests and metadata. Asking for an encoding
+ * ourselves turns off the transparent gzip of HttpURLConnection, so the
+ * response bytes Volley hands over are the ones that went over the wire.
+ */
+public class ContentEncoding {
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    public static void addHeaders(Map<String, String> headers) {
+        headers.put("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Get a stream decoding the response body as it is read
+     */
+    public static InputStream decode(NetworkResponse response) throws IOException {
+        InputStream in = new ByteArrayInputStream(response.data);
+        String encoding = getContentEncoding(response);
+        if (encoding == null) {
+            return in;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in);
+            case "deflate":
+                // Servers send both zlib wrapped and raw deflate data
+                return new InflaterInputStream(in, new Inflater(!isZlibWrapped(response.data)));
+            default:
+                return in;
+        }
+    }
+
+    private static String getContentEncoding(NetworkResponse response) {
+        if (response.headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            if ("Content-Encoding".equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isZlibWrapped(byte[] data) {
+        return data.length >= 2 && (data[0] & 0x0f) == 8
+                && (((data[0] & 0xff) << 8) | (data[1] & 0xff)) % 31 == 0;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the HTTP connections of the app, for Volley as well as for our own
+ * downloads, so they can share DNS lookups, TLS sessions and keep-alive
+ * connections. Can be replaced, e.g. by one talking to a local test server.
+ */
+public interface HttpTransport {
+    /**
+     * Open a connection to the given url, not connected yet
+     */
+    HttpURLConnection open(URL url) throws IOException;
+
+    /**
+     * Resolve the host of the given url and set up a connection to it in the
+     * background, so that a later request doesn't pay for the handshakes
+     */
+    void prewarm(String url);
+}
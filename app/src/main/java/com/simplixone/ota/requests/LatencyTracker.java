@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import com.simplixone.ota.misc.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the latencies of the last successful manifest requests, persisted in
+ * the preferences, to answer percentile queries.
+ */
+public class LatencyTracker {
+    private static final int MAX_SAMPLES = 20;
+
+    private final SharedPreferences mPrefs;
+    private final List<Long> mSamples = new ArrayList<>();
+
+    public LatencyTracker(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String stored = mPrefs.getString(Constants.MANIFEST_LATENCIES_PREF, "");
+        for (String sample : TextUtils.split(stored, ",")) {
+            try {
+                mSamples.add(Long.parseLong(sample));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    public void add(long latency) {
+        mSamples.add(latency);
+        while (mSamples.size() > MAX_SAMPLES) {
+            mSamples.remove(0);
+        }
+        mPrefs.edit().putString(Constants.MANIFEST_LATENCIES_PREF, TextUtils.join(",", mSamples)).apply();
+    }
+
+    public int size() {
+        return mSamples.size();
+    }
+
+    /**
+     * Get the given percentile (0 to 1) of the stored latencies, or -1 if there is none
+     */
+    public long getPercentile(double percentile) {
+        if (mSamples.isEmpty()) {
+            return -1;
+        }
+        Long[] sorted = mSamples.toArray(new Long[mSamples.size()]);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import com.simplixone.ota.UpdaterApplication;
+import com.simplixone.ota.misc.BuildIndex;
+import com.simplixone.ota.misc.CheckMetrics;
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.misc.ManifestCache;
+import com.simplixone.ota.utils.Utils;
+
+import java.util.List;
+
+/**
+ * Fetches one manifest, published on a primary url and optional mirrors.
+ * <p/>
+ * The primary is requested first. If it hasn't answered once the usual
+ * latency percentile has elapsed the next mirror is requested too, and the
+ * first valid answer wins while the others are cancelled. A mirror that fails
+ * is replaced by the next one straight away. When all of them failed the
+ * whole attempt is retried as {@link RetryEngine} sees fit.
+ */
+public class ManifestFetcher {
+    private static final String TAG = "ManifestFetcher";
+    // DefaultRetryPolicy values for Volley, the timeout comes from TimeoutEstimator
+    private static final int REQUEST_MAX_RETRIES = 0;
+    // Hedging
+    private static final double HEDGE_PERCENTILE = 0.9;
+    private static final int HEDGE_MIN_SAMPLES = 5;
+    private static final long HEDGE_DEFAULT_DELAY = 2000; // 2 seconds
+    private static final long HEDGE_MIN_DELAY = 500;
+    private static final long HEDGE_MAX_DELAY = 5000;
+
+    // Hedge timers and pending retries
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final Context mContext;
+    private final List<String> mUrls;
+    private final Callback mCallback;
+    private final FetchTag mTag = new FetchTag();
+    private final RetryEngine mRetryEngine = new RetryEngine();
+    private final CheckMetrics mMetrics = new CheckMetrics();
+    private final LatencyTracker mLatencyTracker;
+    private TimeoutEstimator mTimeoutEstimator;
+    private int mTimedOutAttempts;
+    private ManifestCache mCache;
+    private long mStartTime;
+    private int mNextUrl;
+    private int mInFlight;
+    private boolean mDone;
+    private boolean mUnchanged;
+
+    /**
+     * @param urls the primary url of the manifest first, then its mirrors
+     */
+    public ManifestFetcher(Context context, List<String> urls, Callback callback) {
+        mContext = context.getApplicationContext();
+        mUrls = urls;
+        mCallback = callback;
+        mLatencyTracker = new LatencyTracker(mContext);
+    }
+
+    public static void cancelAll(Context context) {
+        sHandler.removeCallbacksAndMessages(null);
+        getQueue(context).cancelAll(new RequestQueue.RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return request.getTag() instanceof FetchTag;
+            }
+        });
+    }
+
+    private static RequestQueue getQueue(Context context) {
+        return ((UpdaterApplication) context.getApplicationContext()).getQueue();
+    }
+
+    private SharedPreferences getPrefs() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    private long getManifestCacheTtl() {
+        return getPrefs().getLong(Constants.MANIFEST_CACHE_TTL_PREF, Constants.MANIFEST_CACHE_TTL_DEFAULT);
+    }
+
+    private boolean isConditionalCheckEnabled() {
+        return getPrefs().getBoolean(Constants.CONDITIONAL_CHECK_PREF, Constants.CONDITIONAL_CHECK_DEFAULT);
+    }
+
+    public CheckMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Whether the manifest delivered is the one seen by the previous check
+     */
+    public boolean isUnchanged() {
+        return mUnchanged;
+    }
+
+    public void fetch() {
+        mStartTime = SystemClock.elapsedRealtime();
+        String networkType = Utils.getNetworkType(mContext);
+        mTimeoutEstimator = new TimeoutEstimator(mContext, networkType);
+        mMetrics.setNetworkType(networkType);
+        mCache = isConditionalCheckEnabled() ? ManifestCache.load(mContext, mUrls.get(0)) : null;
+
+        // Serve the cached manifest while offline, as long as it is not too old
+        if (mCache != null && !Utils.isOnline(mContext) && mCache.isFresh(getManifestCacheTtl())) {
+            Log.d(TAG, "Offline, using cached manifest");
+            mUnchanged = true;
+            finish(mCache.getBuilds(), null);
+            return;
+        }
+        startAttempt();
+    }
+
+    private void startAttempt() {
+        mNextUrl = 0;
+        mInFlight = 0;
+        launchNext();
+    }
+
+    private long getHedgeDelay() {
+        if (mLatencyTracker.size() < HEDGE_MIN_SAMPLES) {
+            return HEDGE_DEFAULT_DELAY;
+        }
+        long delay = mLatencyTracker.getPercentile(HEDGE_PERCENTILE);
+        return Math.max(HEDGE_MIN_DELAY, Math.min(delay, HEDGE_MAX_DELAY));
+    }
+
+    private void launchNext() {
+        if (mDone || mNextUrl >= mUrls.size()) {
+            return;
+        }
+        new Leg(mUrls.get(mNextUrl++)).start();
+        if (mNextUrl < mUrls.size()) {
+            sHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "No answer yet, hedging with the next mirror");
+                    launchNext();
+                }
+            }, mTag, SystemClock.uptimeMillis() + getHedgeDelay());
+        }
+    }
+
+    private void finish(BuildIndex builds, String source) {
+        mDone = true;
+        // Cancel the slower mirrors
+        sHandler.removeCallbacksAndMessages(mTag);
+        getQueue(mContext).cancelAll(mTag);
+        mMetrics.setSource(source);
+        finishMetrics();
+        mCallback.onManifest(builds);
+    }
+
+    private void finishMetrics() {
+        mMetrics.setRetryCount(mRetryEngine.getRetryCount());
+        mMetrics.setLatency(SystemClock.elapsedRealtime() - mStartTime);
+        Log.d(TAG, mMetrics.toString());
+    }
+
+    private void onAttemptFailed(VolleyError error) {
+        RetryEngine.ErrorClass errorClass = RetryEngine.classify(error);
+        mMetrics.setErrorClass(errorClass.name());
+        if (errorClass == RetryEngine.ErrorClass.TIMEOUT) {
+            // Back the timeout off until a request gets through again
+            mTimedOutAttempts++;
+        }
+
+        long delay = mRetryEngine.nextDelay(error);
+        if (delay >= 0) {
+            Log.d(TAG, "Fetch failed (" + errorClass + "), retrying in " + delay + "ms");
+            sHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    startAttempt();
+                }
+            }, mTag, SystemClock.uptimeMillis() + delay);
+            return;
+        }
+        if (mRetryEngine.getLastRetryAfter() > 0) {
+            // Let the scheduler honor what the server asked for
+            getPrefs().edit()
+                    .putLong(Constants.CHECK_RETRY_AFTER_PREF,
+                            System.currentTimeMillis() + mRetryEngine.getLastRetryAfter())
+                    .apply();
+        }
+
+        boolean unreachable = errorClass == RetryEngine.ErrorClass.TIMEOUT
+                || errorClass == RetryEngine.ErrorClass.DNS
+                || errorClass == RetryEngine.ErrorClass.NETWORK;
+        if (mCache != null && unreachable && mCache.isFresh(getManifestCacheTtl())) {
+            Log.d(TAG, "Server unreachable, using cached manifest");
+            mUnchanged = true;
+            finish(mCache.getBuilds(), null);
+            return;
+        }
+        mDone = true;
+        finishMetrics();
+        mCallback.onError(error);
+    }
+
+    public interface Callback {
+        void onManifest(BuildIndex builds);
+
+        void onError(VolleyError error);
+    }
+
+    private static class FetchTag {
+    }
+
+    private class Leg implements Response.Listener<BuildIndex>, Response.ErrorListener {
+        private final String mUrl;
+        private UpdatesJsonObjectRequest mRequest;
+        private long mLegStartTime;
+
+        Leg(String url) {
+            mUrl = url;
+        }
+
+        void start() {
+            mLegStartTime = SystemClock.elapsedRealtime();
+            mRequest = new UpdatesJsonObjectRequest(mUrl,
+                    Utils.getUserAgentString(mContext), this, this);
+            // Validators are only meaningful to the server that issued them
+            if (mCache != null && mUrl.equals(mCache.getSourceUrl())) {
+                mRequest.setValidators(mCache.getETag(), mCache.getLastModified());
+            }
+            // We keep our own cache, don't let Volley answer from its own
+            mRequest.setShouldCache(false);
+            // Improve request error tolerance
+            int timeout = mTimeoutEstimator.getTimeout(mTimedOutAttempts);
+            mMetrics.setTimeout(timeout);
+            mRequest.setRetryPolicy(new DefaultRetryPolicy(timeout,
+                    REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+            mRequest.setTag(mTag);
+            mInFlight++;
+            getQueue(mContext).add(mRequest);
+        }
+
+        @Override
+        public void onResponse(BuildIndex response) {
+            mInFlight--;
+            if (mDone) {
+                return;
+            }
+            BuildIndex builds = response;
+            if (mRequest.isNotModified() && mCache == null) {
+                onLegFailed(new VolleyError("Not modified, but nothing cached"));
+                return;
+            }
+            if (mRequest.isNotModified() || (mCache != null
+                    && mRequest.getContentHash().equals(mCache.getContentHash()))) {
+                // Manifest unchanged, reuse what we parsed last time
+                mUnchanged = true;
+                mCache.touch();
+                ManifestCache.save(mContext, mCache);
+                builds = mCache.getBuilds();
+            } else {
+                ManifestCache.save(mContext, new ManifestCache(mUrls.get(0), mUrl,
+                        mRequest.getETag(), mRequest.getLastModified(),
+                        mRequest.getContentHash(), builds));
+            }
+            mMetrics.setTransferSize(mRequest.getWireBytes(), mRequest.getDecodedBytes());
+            long responseTime = SystemClock.elapsedRealtime() - mLegStartTime;
+            mMetrics.setResponseTime(responseTime);
+            mTimeoutEstimator.add(responseTime);
+            mLatencyTracker.add(responseTime);
+            finish(builds, mUrl);
+        }
+
+        @Override
+        public void onErrorResponse(VolleyError volleyError) {
+            mInFlight--;
+            if (mDone) {
+                return;
+            }
+            VolleyLog.e("Error: ", volleyError.getMessage());
+            VolleyLog.e("Error type: " + volleyError.toString());
+            onLegFailed(volleyError);
+        }
+
+        private void onLegFailed(VolleyError volleyError) {
+            if (mNextUrl < mUrls.size()) {
+                // Fail over to the next mirror without waiting for the hedge timer
+                sHandler.removeCallbacksAndMessages(mTag);
+                launchNext();
+            } else if (mInFlight == 0) {
+                onAttemptFailed(volleyError);
+            }
+        }
+    }
+}
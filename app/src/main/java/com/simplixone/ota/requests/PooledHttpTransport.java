@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpTransport} over HttpURLConnection. Idle keep-alive connections
+ * are pooled per process, and all TLS connections go through the same socket
+ * factory so its session cache lets reconnections resume the handshake.
+ */
+public class PooledHttpTransport implements HttpTransport {
+    private static final String TAG = "PooledHttpTransport";
+    private static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    // Pooled connections are evicted after a few idle minutes, stay below
+    private static final long PREWARM_VALIDITY = 60 * 1000; // 1 minute
+
+    private final SSLSocketFactory mSslSocketFactory;
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Long> mWarmHosts = new HashMap<>();
+
+    public PooledHttpTransport() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        mSslSocketFactory = createSslSocketFactory();
+    }
+
+    private static SSLSocketFactory createSslSocketFactory() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Unable to create TLS context", e);
+            return HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        return connection;
+    }
+
+    @Override
+    public void prewarm(final String url) {
+        final URL target;
+        try {
+            target = new URL(url);
+        } catch (IOException e) {
+            return;
+        }
+        final String host = target.getProtocol() + "://" + target.getAuthority();
+        synchronized (mWarmHosts) {
+            Long warmedAt = mWarmHosts.get(host);
+            long now = SystemClock.elapsedRealtime();
+            if (warmedAt != null && now - warmedAt < PREWARM_VALIDITY) {
+                return;
+            }
+            mWarmHosts.put(host, now);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                HttpURLConnection connection = null;
+                try {
+                    InetAddress.getAllByName(target.getHost());
+                    connection = open(target);
+                    connection.setRequestMethod("HEAD");
+                    connection.getResponseCode();
+                    // Consume the response so the connection goes back to the pool
+                    InputStream in = connection.getInputStream();
+                    in.close();
+                    Log.d(TAG, "Warmed up " + host + " in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (IOException e) {
+                    Log.d(TAG, "Unable to warm up " + host + ": " + e.getMessage());
+                    synchronized (mWarmHosts) {
+                        mWarmHosts.remove(host);
+                    }
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed manifest request is retried.
+ * Transient failures are retried with a capped, jittered exponential backoff,
+ * throttling answers are retried no sooner than the server asked for.
+ */
+public class RetryEngine {
+    private static final int MAX_RETRIES = 3;
+    private static final long BASE_DELAY = 2000; // 2 seconds
+    private static final long MAX_DELAY = 30000; // 30 seconds
+    // Longer waits are left to the check scheduler
+    private static final long MAX_RETRY_AFTER = 60000; // 1 minute
+
+    public enum ErrorClass {
+        TIMEOUT, DNS, NETWORK, CLIENT, SERVER, THROTTLED, PARSE
+    }
+
+    private final Random mRandom = new Random();
+    private int mRetries;
+    private long mRetryAfter;
+
+    public static ErrorClass classify(VolleyError error) {
+        NetworkResponse response = error.networkResponse;
+        if (response != null) {
+            if (response.statusCode == 429 || response.statusCode == 503) {
+                return ErrorClass.THROTTLED;
+            } else if (response.statusCode >= 500) {
+                return ErrorClass.SERVER;
+            } else if (response.statusCode >= 400) {
+                return ErrorClass.CLIENT;
+            }
+        }
+        if (error instanceof TimeoutError) {
+            return ErrorClass.TIMEOUT;
+        } else if (error instanceof ParseError) {
+            return ErrorClass.PARSE;
+        } else if (error instanceof NoConnectionError
+                && error.getCause() instanceof UnknownHostException) {
+            return ErrorClass.DNS;
+        }
+        return ErrorClass.NETWORK;
+    }
+
+    private static boolean isTransient(ErrorClass errorClass) {
+        return errorClass != ErrorClass.CLIENT && errorClass != ErrorClass.PARSE;
+    }
+
+    /**
+     * Get the delay, in milliseconds, after which the server asked us to come back, or 0
+     */
+    public static long getRetryAfter(VolleyError error) {
+        NetworkResponse response = error.networkResponse;
+        if (response == null || response.headers == null) {
+            return 0;
+        }
+        String value = response.headers.get("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            long date = HttpHeaderParser.parseDateAsEpoch(value);
+            return date > 0 ? Math.max(0, date - System.currentTimeMillis()) : 0;
+        }
+    }
+
+    /**
+     * Get the delay before the next attempt, or -1 if the request shouldn't be retried
+     */
+    public long nextDelay(VolleyError error) {
+        ErrorClass errorClass = classify(error);
+        mRetryAfter = getRetryAfter(error);
+        if (!isTransient(errorClass) || mRetries >= MAX_RETRIES || mRetryAfter > MAX_RETRY_AFTER) {
+            return -1;
+        }
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << mRetries);
+        long delay = cap / 2 + (long) (mRandom.nextDouble() * cap / 2);
+        mRetries++;
+        return Math.max(delay, mRetryAfter);
+    }
+
+    public int getRetryCount() {
+        return mRetries;
+    }
+
+    /**
+     * Get the Retry-After delay of the last failure, in milliseconds
+     */
+    public long getLastRetryAfter() {
+        return mRetryAfter;
+    }
+}
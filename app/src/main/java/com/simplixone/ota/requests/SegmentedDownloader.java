@@ -0,0 +1,859 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.simplixone.ota.misc.BlockMap;
+import com.simplixone.ota.misc.DownloadCheckpoint;
+import com.simplixone.ota.utils.BlockScanner;
+import com.simplixone.ota.utils.IncrementalMD5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file over several concurrent HTTP Range requests, written in
+ * place into a file preallocated to the full size.
+ * <p/>
+ * The file is split in one segment per connection. A connection done with its
+ * segment takes over the second half of what is left of the largest remaining
+ * one, so a slow connection doesn't hold the whole download back. Servers
+ * that don't support ranges are downloaded over a single connection.
+ * <p/>
+ * What is on disk is checkpointed every few seconds in a
+ * {@link DownloadCheckpoint}, so a paused, failed or killed download resumes
+ * where it was. On resume the last bytes of each segment are downloaded again
+ * and compared with the partial file, and ranges are requested with If-Range
+ * so a file replaced on the server is never mixed with the old one.
+ * <p/>
+ * Given a block map of the file, blocks found in local files, e.g. the
+ * previous update, are copied from them and only the ranges left are
+ * downloaded.
+ * <p/>
+ * The file is hashed while it downloads, as far as it is written without
+ * holes, mostly from the page cache. The digest state is checkpointed too,
+ * so the MD5 of the file is known as soon as its last byte is written.
+ * <p/>
+ * {@link #download()} blocks until the download is over, the latest
+ * download can be followed from other threads through {@link #getActive()}.
+ */
+public class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+
+    public static final int STATUS_PENDING = 1;
+    public static final int STATUS_RUNNING = 2;
+    public static final int STATUS_SUCCESSFUL = 3;
+    public static final int STATUS_FAILED = 4;
+    public static final int STATUS_CANCELLED = 5;
+    public static final int STATUS_PAUSED = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+    private static final int MAX_SEGMENT_RETRIES = 3;
+    // Don't split what is left of a segment below this
+    private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 2000; // 2 seconds
+    // Downloaded again on resume, to make sure the partial file is sane
+    private static final int TAIL_VERIFY_SIZE = 64 * 1024;
+    private static final int HASH_CHUNK_SIZE = 256 * 1024;
+    private static final long HASH_POLL_INTERVAL = 100;
+    // Reused ranges shorter than that are downloaded along with their neighbours
+    private static final long MIN_REUSED_RUN = 256 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    private static volatile SegmentedDownloader sActive;
+
+    private final HttpTransport mTransport;
+    private final String mUrl;
+    private final String mUserAgent;
+    private final File mFile;
+    private final String mFileName;
+    private final int mConnections;
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final Queue<Segment> mUnassigned = new ArrayDeque<>();
+    private final Set<HttpURLConnection> mOpenConnections = new HashSet<>();
+    private final AtomicLong mDownloaded = new AtomicLong();
+    private final Object mCheckpointLock = new Object();
+    private final Object mHashLock = new Object();
+    private IncrementalMD5 mDigest = new IncrementalMD5();
+    private volatile boolean mHashInvalid;
+    private volatile boolean mWorkersDone;
+    private volatile long mTotal = -1;
+    private volatile int mStatus = STATUS_PENDING;
+    private volatile boolean mCancelled;
+    private volatile boolean mPaused;
+    private volatile long mLastCheckpoint;
+    private boolean mRangesSupported;
+    private String mValidator;
+    private boolean mChangedOnServer;
+    private IOException mError;
+    private String mBlockMapUrl;
+    private List<File> mReusableFiles;
+
+    /**
+     * @param file        where to write the download, resumed if checkpointed
+     * @param fileName    name of the update being downloaded
+     * @param connections maximum number of concurrent connections
+     */
+    public SegmentedDownloader(HttpTransport transport, String url, String userAgent,
+                               File file, String fileName, int connections) {
+        mTransport = transport;
+        mUrl = url;
+        mUserAgent = userAgent;
+        mFile = file;
+        mFileName = fileName;
+        mConnections = Math.max(1, connections);
+        // Followed as soon as it is announced, even before it starts
+        sActive = this;
+    }
+
+    /**
+     * Get the latest download created, running or not, or null
+     */
+    public static SegmentedDownloader getActive() {
+        return sActive;
+    }
+
+    /**
+     * Whether a download into the given file can be resumed
+     */
+    public static boolean isResumable(File file) {
+        return DownloadCheckpoint.exists(file);
+    }
+
+    /**
+     * Delete a partial download and its checkpoint, returns false if there was none
+     */
+    public static boolean discard(File file) {
+        boolean existed = file.exists();
+        DownloadCheckpoint.delete(file);
+        file.delete();
+        return existed;
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloaded.get();
+    }
+
+    /**
+     * Get the size of the file, or -1 while unknown
+     */
+    public long getTotalBytes() {
+        return mTotal;
+    }
+
+    /**
+     * Get the MD5 of the downloaded file, or null if it couldn't be hashed
+     * along the way
+     */
+    public String getMD5() {
+        synchronized (mHashLock) {
+            if (mStatus != STATUS_SUCCESSFUL || mHashInvalid || mDigest.getCount() != mTotal) {
+                return null;
+            }
+            return mDigest.digestHex();
+        }
+    }
+
+    public boolean isRunning() {
+        return mStatus == STATUS_PENDING || mStatus == STATUS_RUNNING;
+    }
+
+    /**
+     * Stop and throw away what was downloaded
+     */
+    public void cancel() {
+        mCancelled = true;
+        disconnectAll();
+    }
+
+    /**
+     * Stop, keeping what was downloaded to resume later
+     */
+    public void pause() {
+        mPaused = true;
+        disconnectAll();
+    }
+
+    /**
+     * Reuse blocks of the given local files, as described by the block map at the given url
+     */
+    public void setReusableFiles(String blockMapUrl, List<File> files) {
+        mBlockMapUrl = blockMapUrl;
+        mReusableFiles = files;
+    }
+
+    private boolean isStopped() {
+        return mCancelled || mPaused;
+    }
+
+    /**
+     * Run the download, returns true once the whole file has been written
+     */
+    public boolean download() {
+        long start = SystemClock.elapsedRealtime();
+        long resumedFrom = 0;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            DownloadCheckpoint checkpoint = DownloadCheckpoint.load(mFile, mUrl);
+            probe();
+            if (checkpoint != null && !canResume(checkpoint, file.length())) {
+                Log.d(TAG, "Checkpoint of " + mFileName + " is stale, starting over");
+                checkpoint = null;
+            }
+            mStatus = STATUS_RUNNING;
+            if (checkpoint != null) {
+                resume(checkpoint);
+                resumedFrom = mDownloaded.get();
+            } else {
+                DownloadCheckpoint.delete(mFile);
+                file.setLength(mTotal > 0 ? mTotal : 0);
+                if (!reuseBlocks(file.getChannel())) {
+                    split();
+                }
+                resumedFrom = mDownloaded.get();
+            }
+            run(file.getChannel());
+            if (mTotal < 0 && mError == null && !isStopped()) {
+                // Size only known now that the server closed the stream
+                mTotal = mDownloaded.get();
+                file.setLength(mTotal);
+            }
+            if (mError != null || mPaused) {
+                saveCheckpoint(file.getChannel());
+            }
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+
+        if (mCancelled || mChangedOnServer) {
+            discard(mFile);
+        }
+        if (mCancelled) {
+            mStatus = STATUS_CANCELLED;
+        } else if (mPaused) {
+            Log.d(TAG, "Paused " + mFileName + " at " + mDownloaded.get() + "/" + mTotal);
+            mStatus = STATUS_PAUSED;
+        } else if (mError != null) {
+            Log.e(TAG, "Download of " + mFileName + " failed", mError);
+            mStatus = STATUS_FAILED;
+        } else {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            long transferred = mTotal - resumedFrom;
+            Log.d(TAG, "Downloaded " + transferred + " bytes over " + mSegments.size()
+                    + " segments in " + elapsed + "ms, " + (transferred * 1000 / elapsed / 1024) + "KB/s");
+            DownloadCheckpoint.delete(mFile);
+            mStatus = STATUS_SUCCESSFUL;
+        }
+        if (mStatus != STATUS_SUCCESSFUL && !isResumable(mFile)) {
+            // Nothing to resume from, e.g. the server doesn't serve ranges
+            mFile.delete();
+        }
+        return mStatus == STATUS_SUCCESSFUL;
+    }
+
+    /**
+     * Find out the size of the file, whether the server serves ranges of it
+     * and how to make sure it didn't change between two ranges
+     */
+    private void probe() throws IOException {
+        HttpURLConnection connection = open();
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                Matcher matcher = contentRange != null ? CONTENT_RANGE.matcher(contentRange) : null;
+                if (matcher != null && matcher.matches()) {
+                    mTotal = Long.parseLong(matcher.group(1));
+                    mRangesSupported = true;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                mTotal = connection.getContentLengthLong();
+            } else {
+                throw new IOException("Unexpected response " + code);
+            }
+            // If-Range only accepts strong validators
+            String eTag = connection.getHeaderField("ETag");
+            if (eTag != null && !eTag.startsWith("W/")) {
+                mValidator = eTag;
+            } else {
+                mValidator = connection.getHeaderField("Last-Modified");
+            }
+        } finally {
+            close(connection);
+        }
+        Log.d(TAG, "Size " + mTotal + ", ranges " + (mRangesSupported ? "supported" : "not supported"));
+    }
+
+    private boolean canResume(DownloadCheckpoint checkpoint, long length) {
+        return mRangesSupported && mValidator != null
+                && mValidator.equals(checkpoint.getValidator())
+                && checkpoint.getTotal() == mTotal && length == mTotal;
+    }
+
+    private void resume(DownloadCheckpoint checkpoint) {
+        for (int i = 0; i < checkpoint.getSegmentCount(); i++) {
+            Segment segment = new Segment(checkpoint.getStart(i), checkpoint.getEnd(i));
+            segment.resumeAt(checkpoint.getPosition(i),
+                    (int) Math.min(TAIL_VERIFY_SIZE, checkpoint.getPosition(i) - checkpoint.getStart(i)));
+            mSegments.add(segment);
+        }
+        if (checkpoint.getDigest() != null) {
+            mDigest = checkpoint.getDigest();
+        }
+        mDownloaded.set(checkpoint.getDownloadedBytes());
+        Log.d(TAG, "Resuming " + mFileName + " at " + mDownloaded.get() + "/" + mTotal);
+    }
+
+    private void split() {
+        if (!mRangesSupported || mTotal <= 0) {
+            mSegments.add(new Segment(0, mTotal > 0 ? mTotal : Long.MAX_VALUE));
+            return;
+        }
+        int count = (int) Math.max(1, Math.min(mConnections, mTotal / MIN_SPLIT_SIZE));
+        long size = mTotal / count;
+        for (int i = 0; i < count; i++) {
+            long from = i * size;
+            long to = i == count - 1 ? mTotal : from + size;
+            mSegments.add(new Segment(from, to));
+        }
+    }
+
+    /**
+     * Copy the blocks found in local files into the file and only leave the
+     * ranges still missing to download, returns false if nothing was reused
+     */
+    private boolean reuseBlocks(FileChannel channel) {
+        if (mBlockMapUrl == null || mReusableFiles == null || !mRangesSupported || mTotal <= 0) {
+            return false;
+        }
+        long start = SystemClock.elapsedRealtime();
+        BlockMap map;
+        try {
+            map = fetchBlockMap();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to get the block map of " + mFileName, e);
+            return false;
+        }
+        if (map.getLength() != mTotal) {
+            Log.e(TAG, "Block map of " + mFileName + " is for another file");
+            return false;
+        }
+        BlockScanner scanner = new BlockScanner(map, channel);
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (File reusable : mReusableFiles) {
+            if (isStopped()) {
+                break;
+            }
+            if (!reusable.isFile() || reusable.equals(mFile)) {
+                continue;
+            }
+            try {
+                scanner.scan(reusable, threads);
+            } catch (IOException e) {
+                // Whatever was copied is right, go on with the next file
+                Log.e(TAG, "Unable to scan " + reusable.getName(), e);
+            }
+        }
+        if (scanner.getReusedBytes() == 0) {
+            return false;
+        }
+
+        // Runs of blocks found become segments already written
+        long reused = 0;
+        int block = 0;
+        int count = map.getBlockCount();
+        long missingFrom = 0;
+        while (block < count) {
+            if (!scanner.isFound(block)) {
+                block++;
+                continue;
+            }
+            int runStart = block;
+            while (block < count && scanner.isFound(block)) {
+                block++;
+            }
+            long from = map.getBlockStart(runStart);
+            long to = block < count ? map.getBlockStart(block) : mTotal;
+            if (to - from < MIN_REUSED_RUN && to < mTotal) {
+                continue;
+            }
+            if (from > missingFrom) {
+                mSegments.add(new Segment(missingFrom, from));
+            }
+            Segment segment = new Segment(from, to);
+            segment.resumeAt(to, 0);
+            mSegments.add(segment);
+            reused += to - from;
+            missingFrom = to;
+        }
+        if (missingFrom < mTotal) {
+            mSegments.add(new Segment(missingFrom, mTotal));
+        }
+        mDownloaded.set(reused);
+        Log.d(TAG, "Reused " + reused + "/" + mTotal + " bytes of " + mFileName + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms, " + mSegments.size() + " segments");
+        return true;
+    }
+
+    private BlockMap fetchBlockMap() throws IOException {
+        HttpURLConnection connection = open(mBlockMapUrl);
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return BlockMap.parse(in);
+            }
+        } finally {
+            close(connection);
+        }
+    }
+
+    private void run(final FileChannel channel) throws IOException {
+        for (Segment segment : mSegments) {
+            if (segment.remaining() > 0) {
+                mUnassigned.add(segment);
+            }
+        }
+        mLastCheckpoint = SystemClock.elapsedRealtime();
+        List<Thread> workers = new ArrayList<>();
+        int count = mRangesSupported ? mConnections : 1;
+        for (int i = 0; i < count; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Segment next = nextSegment();
+                        while (next != null && !isStopped()) {
+                            fetch(next, channel);
+                            next = nextSegment();
+                        }
+                    } catch (IOException e) {
+                        synchronized (mSegments) {
+                            if (mError == null) {
+                                mError = e;
+                            }
+                        }
+                        // No point in going on with the other segments
+                        disconnectAll();
+                    }
+                }
+            }, TAG);
+            workers.add(worker);
+            worker.start();
+        }
+        Thread hasher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hash(channel);
+            }
+        }, TAG + "-hash");
+        hasher.start();
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            mWorkersDone = true;
+            hasher.join();
+        } catch (InterruptedException e) {
+            pause();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Hash the file as far as it is written without holes, until the workers
+     * are done and everything they wrote is hashed
+     */
+    private void hash(FileChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_CHUNK_SIZE);
+        try {
+            while (!isStopped() && !mHashInvalid) {
+                // Only this thread updates the digest
+                long hashed = mDigest.getCount();
+                long available = getContiguousBytes();
+                if (available <= hashed) {
+                    if (mWorkersDone) {
+                        break;
+                    }
+                    synchronized (mHashLock) {
+                        mHashLock.wait(HASH_POLL_INTERVAL);
+                    }
+                    continue;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), available - hashed));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, hashed + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file at " + (hashed + buffer.position()));
+                    }
+                }
+                synchronized (mHashLock) {
+                    mDigest.update(buffer.array(), 0, buffer.position());
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Unable to hash " + mFileName + " while downloading", e);
+            mHashInvalid = true;
+        }
+    }
+
+    /**
+     * Get how many bytes from the beginning of the file are written without holes
+     */
+    private long getContiguousBytes() {
+        List<Segment> segments;
+        synchronized (mSegments) {
+            segments = new ArrayList<>(mSegments);
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.mStart, b.mStart);
+            }
+        });
+        long contiguous = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (segment.mStart > contiguous) {
+                    break;
+                }
+                contiguous = Math.max(contiguous, segment.mPosition);
+                if (segment.mPosition < segment.mEnd) {
+                    break;
+                }
+            }
+        }
+        return contiguous;
+    }
+
+    private void disconnectAll() {
+        synchronized (mOpenConnections) {
+            for (HttpURLConnection connection : mOpenConnections) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Get a segment nobody works on yet, or else take over the second half of
+     * the largest remaining segment, or null
+     */
+    private Segment nextSegment() {
+        if (mError != null) {
+            return null;
+        }
+        synchronized (mSegments) {
+            Segment unassigned = mUnassigned.poll();
+            if (unassigned != null) {
+                return unassigned;
+            }
+            Segment largest = null;
+            for (Segment segment : mSegments) {
+                if (largest == null || segment.remaining() > largest.remaining()) {
+                    largest = segment;
+                }
+            }
+            if (largest == null || !mRangesSupported || largest.remaining() < 2 * MIN_SPLIT_SIZE) {
+                return null;
+            }
+            Segment stolen = largest.split();
+            mSegments.add(stolen);
+            return stolen;
+        }
+    }
+
+    private void fetch(Segment segment, FileChannel channel) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int attempts = 0;
+        while (!isStopped() && segment.remaining() > 0) {
+            HttpURLConnection connection = open();
+            try {
+                int verify = segment.getVerify();
+                long from = segment.getPosition() - verify;
+                long to = segment.getEnd();
+                if (mRangesSupported) {
+                    connection.setRequestProperty("Range", "bytes=" + from + "-" + (to - 1));
+                    if (mValidator != null) {
+                        connection.setRequestProperty("If-Range", mValidator);
+                    }
+                }
+                int code = connection.getResponseCode();
+                if (mRangesSupported && code == HttpURLConnection.HTTP_OK) {
+                    // If-Range didn't match, the whole new file is being sent
+                    mChangedOnServer = true;
+                    throw new IOException("File changed on the server");
+                }
+                int expected = mRangesSupported ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK;
+                if (code != expected) {
+                    throw new IOException("Unexpected response " + code);
+                }
+                InputStream in = connection.getInputStream();
+                if (verify > 0) {
+                    verifyTail(segment, in, channel, from, verify);
+                }
+                while (!isStopped()) {
+                    long remaining = segment.remaining();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        if (mTotal < 0) {
+                            // Unknown size, the end of the stream is the end of the file
+                            segment.finish();
+                            break;
+                        }
+                        throw new IOException("Connection closed before the end of the segment");
+                    }
+                    // The end of the segment may have moved, only keep what is still ours
+                    long position = segment.getPosition();
+                    int kept = segment.keep(read);
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, kept);
+                    while (data.hasRemaining()) {
+                        channel.write(data, position + data.position());
+                    }
+                    // Only account for bytes once written, checkpoints rely on it
+                    segment.advance(kept);
+                    mDownloaded.addAndGet(kept);
+                    maybeSaveCheckpoint(channel);
+                }
+            } catch (IOException e) {
+                if (isStopped() || mError != null || mChangedOnServer) {
+                    if (mChangedOnServer) {
+                        throw e;
+                    }
+                    return;
+                }
+                if (!mRangesSupported || ++attempts > MAX_SEGMENT_RETRIES) {
+                    throw e;
+                }
+                Log.d(TAG, "Segment interrupted at " + segment.getPosition() + ", retrying: " + e.getMessage());
+            } finally {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Compare the bytes preceding the resume position with what the server
+     * sends, starting the segment over if the partial file doesn't match
+     */
+    private void verifyTail(Segment segment, InputStream in, FileChannel channel,
+                            long from, int length) throws IOException {
+        byte[] remote = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(remote, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("Connection closed while verifying the partial file");
+            }
+            offset += read;
+        }
+        ByteBuffer local = ByteBuffer.allocate(length);
+        while (local.hasRemaining() && channel.read(local, from + local.position()) >= 0) {
+            // Read until full
+        }
+        if (local.hasRemaining() || !Arrays.equals(remote, local.array())) {
+            if (segment.mStart < mDigest.getCount()) {
+                // Already hashed, the digest can't be trusted anymore
+                mHashInvalid = true;
+            }
+            long lost = segment.restart();
+            mDownloaded.addAndGet(-lost);
+            throw new IOException("Partial file doesn't match at " + from + ", segment starts over");
+        }
+        segment.verified();
+    }
+
+    private void maybeSaveCheckpoint(FileChannel channel) throws IOException {
+        if (!mRangesSupported || mValidator == null
+                || SystemClock.elapsedRealtime() - mLastCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        saveCheckpoint(channel);
+    }
+
+    private void saveCheckpoint(FileChannel channel) throws IOException {
+        if (!mRangesSupported || mValidator == null || mChangedOnServer || mCancelled) {
+            return;
+        }
+        synchronized (mCheckpointLock) {
+            mLastCheckpoint = SystemClock.elapsedRealtime();
+            // Before the segments, so everything hashed is recorded as written
+            IncrementalMD5 digest;
+            synchronized (mHashLock) {
+                digest = mHashInvalid ? null : mDigest.copy();
+            }
+            long[] starts;
+            long[] positions;
+            long[] ends;
+            synchronized (mSegments) {
+                int count = mSegments.size();
+                starts = new long[count];
+                positions = new long[count];
+                ends = new long[count];
+                for (int i = 0; i < count; i++) {
+                    Segment segment = mSegments.get(i);
+                    synchronized (segment) {
+                        starts[i] = segment.mStart;
+                        positions[i] = segment.mPosition;
+                        ends[i] = segment.mEnd;
+                    }
+                }
+            }
+            // Everything recorded must be on disk first
+            channel.force(false);
+            DownloadCheckpoint.save(mFile, new DownloadCheckpoint(mUrl, mValidator, mTotal,
+                    starts, positions, ends, digest));
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        return open(mUrl);
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        if (isStopped()) {
+            throw new IOException("Stopped");
+        }
+        HttpURLConnection connection = mTransport.open(new URL(url));
+        connection.setReadTimeout(READ_TIMEOUT);
+        // Byte offsets are those of the file, not of an encoded body
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (mUserAgent != null) {
+            connection.setRequestProperty("User-Agent", mUserAgent);
+        }
+        synchronized (mOpenConnections) {
+            mOpenConnections.add(connection);
+        }
+        return connection;
+    }
+
+    private void close(HttpURLConnection connection) {
+        synchronized (mOpenConnections) {
+            mOpenConnections.remove(connection);
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Byte range [start, end) of the file, written up to position
+     */
+    private static class Segment {
+        private final long mStart;
+        private long mPosition;
+        private long mEnd;
+        private int mVerify;
+
+        Segment(long start, long end) {
+            mStart = start;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        synchronized void resumeAt(long position, int verify) {
+            mPosition = position;
+            mVerify = verify;
+        }
+
+        synchronized long getPosition() {
+            return mPosition;
+        }
+
+        synchronized long getEnd() {
+            return mEnd;
+        }
+
+        synchronized int getVerify() {
+            return mVerify;
+        }
+
+        synchronized long remaining() {
+            return mEnd - mPosition;
+        }
+
+        /**
+         * Get how many of the bytes read at the current position belong to
+         * this segment
+         */
+        synchronized int keep(int read) {
+            return (int) Math.max(0, Math.min(read, mEnd - mPosition));
+        }
+
+        synchronized void advance(int written) {
+            mPosition += written;
+        }
+
+        synchronized void verified() {
+            mVerify = 0;
+        }
+
+        /**
+         * Forget what was written, returns how many bytes that was
+         */
+        synchronized long restart() {
+            long lost = mPosition - mStart;
+            mPosition = mStart;
+            mVerify = 0;
+            return lost;
+        }
+
+        synchronized void finish() {
+            mEnd = mPosition;
+        }
+
+        /**
+         * Give away the second half of what is left. The half kept is always
+         * larger than a read buffer, so a read in flight stays within it.
+         */
+        synchronized Segment split() {
+            long middle = mPosition + (mEnd - mPosition) / 2;
+            Segment other = new Segment(middle, mEnd);
+            mEnd = middle;
+            return other;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.simplixone.ota.misc.Constants;
+
+/**
+ * Request timeout derived from the response times observed on the current
+ * kind of network, estimated the way TCP estimates its retransmission timeout:
+ * a smoothed average plus four times the smoothed deviation. Each network type
+ * has its own estimate, persisted in the preferences.
+ */
+public class TimeoutEstimator {
+    private static final int DEFAULT_TIMEOUT = 15000; // 15 seconds
+    private static final int MIN_TIMEOUT = 3000; // 3 seconds
+    private static final int MAX_TIMEOUT = 60000; // 1 minute
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private final SharedPreferences mPrefs;
+    private final String mKey;
+    private double mSmoothed = -1;
+    private double mDeviation;
+
+    public TimeoutEstimator(Context context, String networkType) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mKey = Constants.RESPONSE_TIME_PREF_PREFIX + networkType;
+        String[] stored = mPrefs.getString(mKey, "").split(",");
+        if (stored.length == 2) {
+            try {
+                mSmoothed = Double.parseDouble(stored[0]);
+                mDeviation = Double.parseDouble(stored[1]);
+            } catch (NumberFormatException e) {
+                mSmoothed = -1;
+            }
+        }
+    }
+
+    /**
+     * Account for the time a successful request took, in milliseconds
+     */
+    public void add(long responseTime) {
+        if (mSmoothed < 0) {
+            mSmoothed = responseTime;
+            mDeviation = responseTime / 2.0;
+        } else {
+            mDeviation = (1 - BETA) * mDeviation + BETA * Math.abs(mSmoothed - responseTime);
+            mSmoothed = (1 - ALPHA) * mSmoothed + ALPHA * responseTime;
+        }
+        mPrefs.edit().putString(mKey, mSmoothed + "," + mDeviation).apply();
+    }
+
+    /**
+     * Get the smoothed response time, or -1 before any sample
+     */
+    public long getSmoothedResponseTime() {
+        return (long) mSmoothed;
+    }
+
+    /**
+     * Get the timeout to use, doubled for each attempt that already timed out
+     */
+    public int getTimeout(int timedOutAttempts) {
+        long timeout = mSmoothed < 0 ? DEFAULT_TIMEOUT : (long) (mSmoothed + 4 * mDeviation);
+        timeout <<= Math.min(timedOutAttempts, 4);
+        return (int) Math.max(MIN_TIMEOUT, Math.min(timeout, MAX_TIMEOUT));
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.requests;
+
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Volley stack opening its connections through our {@link HttpTransport}
+ */
+public class TransportStack extends HurlStack {
+    private volatile HttpTransport mTransport;
+
+    public TransportStack(HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    public void setTransport(HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    @Override
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        return mTransport.open(url);
+    }
+}
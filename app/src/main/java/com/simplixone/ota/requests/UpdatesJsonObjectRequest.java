@@ -10,31 +10,140 @@
  */
 package com.simplixone.ota.requests;
 
+import android.os.SystemClock;
+import android.util.Log;
+
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.simplixone.ota.misc.BuildIndex;
+import com.simplixone.ota.utils.MD5;
+import com.simplixone.ota.utils.ManifestParser;
 
-import org.json.JSONObject;
+import org.apache.commons.io.input.CountingInputStream;
 
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
 
-public class UpdatesJsonObjectRequest extends JsonObjectRequest {
+/**
+ * Fetches the device manifest and hands it to {@link ManifestParser} straight
+ * from the response bytes, without building an intermediate JSONObject.
+ * Compressed answers are decoded on the fly while parsing.
+ */
+public class UpdatesJsonObjectRequest extends Request<BuildIndex> {
+    private static final String TAG = "UpdatesRequest";
+
+    private final Response.Listener<BuildIndex> mListener;
     private String mUserAgent;
     private HashMap<String, String> mHeaders = new HashMap<>();
+    private String mIfNoneMatch;
+    private String mIfModifiedSince;
+    private volatile boolean mNotModified;
+    private volatile String mETag;
+    private volatile String mLastModified;
+    private volatile String mContentHash;
+    private volatile long mWireBytes;
+    private volatile long mDecodedBytes;
 
-    public UpdatesJsonObjectRequest(String url, String userAgent, JSONObject jsonRequest,
-                                    Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
-        super(url, jsonRequest, listener, errorListener);
+    public UpdatesJsonObjectRequest(String url, String userAgent,
+                                    Response.Listener<BuildIndex> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mListener = listener;
         mUserAgent = userAgent;
     }
 
+    /**
+     * Turn this into a conditional request using the validators of a cached copy.
+     * A 304 answer is delivered as a null response, see {@link #isNotModified()}.
+     */
+    public void setValidators(String eTag, String lastModified) {
+        mIfNoneMatch = eTag;
+        mIfModifiedSince = lastModified;
+    }
+
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Get the size of the body as transferred, possibly compressed
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * Get the size of the body once decoded
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    /**
+     * Get the md5 of the manifest body, null for a 304 answer
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
         if (mUserAgent != null) {
             mHeaders.put("User-Agent", mUserAgent);
         }
         mHeaders.put("Cache-Control", "no-cache");
+        ContentEncoding.addHeaders(mHeaders);
+        if (mIfNoneMatch != null) {
+            mHeaders.put("If-None-Match", mIfNoneMatch);
+        }
+        if (mIfModifiedSince != null) {
+            mHeaders.put("If-Modified-Since", mIfModifiedSince);
+        }
         return mHeaders;
     }
+
+    @Override
+    protected Response<BuildIndex> parseNetworkResponse(NetworkResponse response) {
+        if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            mNotModified = true;
+            return Response.success(null, null);
+        }
+        if (response.headers != null) {
+            mETag = response.headers.get("ETag");
+            mLastModified = response.headers.get("Last-Modified");
+        }
+        mContentHash = MD5.calculateMD5(response.data);
+        mWireBytes = response.data.length;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            CountingInputStream in = new CountingInputStream(ContentEncoding.decode(response));
+            BuildIndex index = ManifestParser.parse(in);
+            mDecodedBytes = in.getByteCount();
+            if (index == null) {
+                return Response.error(new ParseError(response));
+            }
+            Log.d(TAG, "Parsed " + mDecodedBytes + " bytes (" + mWireBytes + " on the wire) in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            return Response.success(index, null);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(BuildIndex response) {
+        mListener.onResponse(response);
+    }
 }
@@ -16,7 +16,9 @@ import android.app.Notification;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.simplixone.ota.receiver.DownloadNotifier;
@@ -25,17 +27,22 @@ import com.simplixone.ota.R;
 import com.simplixone.ota.UpdaterApplication;
 import com.simplixone.ota.activities.UpdaterActivity;
 import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.utils.MD5;
 import com.simplixone.ota.utils.Utils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class DownloadCompleteIntentService extends IntentService {
 
     private static final String TAG = "DownloadComplete";
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
 
     private DownloadManager mDm;
 
@@ -69,53 +76,48 @@ public class DownloadCompleteIntentService extends IntentService {
 
         int status = fetchDownloadStatus(id);
         if (status == DownloadManager.STATUS_SUCCESSFUL) {
+            long startTime = SystemClock.elapsedRealtime();
             String destPath = Utils.makeUpdateFolder().getPath() + "/"
                     + destName;
-            File destFileTmp = new File(destPath + Constants.DOWNLOAD_TMP_EXT);
-
-            try (
-                    FileOutputStream outStream = new FileOutputStream(destFileTmp);
-
-                    ParcelFileDescriptor file = mDm.openDownloadedFile(id);
-                    FileInputStream inStream = new FileInputStream(file.getFileDescriptor());
-
-                    FileChannel inChannel = inStream.getChannel();
-                    FileChannel outChannel = outStream.getChannel()
-            ) {
-                inChannel.transferTo(0, file.getStatSize(), outChannel);
-            } catch (IOException e) {
-                Log.e(TAG, "Copy of download failed", e);
-                displayErrorResult(updateIntent, R.string.unable_to_download_file);
-                if (destFileTmp.exists()) {
-                    destFileTmp.delete();
-                }
-                return;
-            } finally {
-                mDm.remove(id);
-            }
-
-            if (!destFileTmp.exists()) {
-                // The download was probably stopped. Exit silently
-                Log.d(TAG, "File not found, can't verify it");
-                return;
-            }
-
             File destFile = new File(destPath);
-            if (destFile.exists()) {
-                destFile.delete();
-            }
-            if (!destFileTmp.exists()) {
-                // The download was probably stopped. Exit silently
-                Log.d(TAG, "File not found, can't rename it");
-                return;
+
+            // Downloaded next to its destination, a rename commits it. It
+            // replaces any previous file atomically.
+            File downloadedFile = fetchDownloadedFile(id);
+            boolean renamed = downloadedFile != null && downloadedFile.renameTo(destFile);
+            MessageDigest digest = null;
+            if (renamed) {
+                // The file moved away, this only forgets the download
+                mDm.remove(id);
+            } else {
+                // Not on the same volume, it has to be copied over
+                digest = copyDownload(id, destFile, updateIntent);
+                if (digest == null) {
+                    return;
+                }
             }
-            destFileTmp.renameTo(destFile);
+            Log.d(TAG, "Download committed by " + (renamed ? "rename" : "copy") + " in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
 
             // We passed. Bring the main app to the foreground and trigger download completed
             updateIntent.putExtra(Constants.EXTRA_FINISHED_DOWNLOAD_ID, id);
             updateIntent.putExtra(Constants.EXTRA_FINISHED_DOWNLOAD_PATH,
                     destPath);
             displaySuccessResult(updateIntent);
+
+            if (digest != null) {
+                MD5.saveMD5(this, destFile, MD5.toHex(digest.digest()));
+            } else {
+                // Not hashed on the way, do it now rather than when installing
+                try {
+                    String md5 = MD5.calculateMD5(destFile);
+                    if (md5 != null) {
+                        MD5.saveMD5(this, destFile, md5);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to hash the download", e);
+                }
+            }
         } else if (status == DownloadManager.STATUS_FAILED) {
             Log.e(TAG, "Download failed");
             // The download failed, reset
@@ -124,6 +126,82 @@ public class DownloadCompleteIntentService extends IntentService {
         }
     }
 
+    /**
+     * Copy the download to its destination through a temporary file,
+     * returns the digest of what was copied or null if it failed
+     */
+    private MessageDigest copyDownload(long id, File destFile, Intent updateIntent) {
+        File destFileTmp = new File(destFile.getPath() + Constants.DOWNLOAD_TMP_EXT);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        try (
+                FileOutputStream outStream = new FileOutputStream(destFileTmp);
+
+                ParcelFileDescriptor file = mDm.openDownloadedFile(id);
+                FileInputStream inStream = new FileInputStream(file.getFileDescriptor());
+
+                FileChannel inChannel = inStream.getChannel();
+                FileChannel outChannel = outStream.getChannel()
+        ) {
+            // Hash what we copy anyway, so verifying doesn't read it all again
+            copyAndHash(inChannel, outChannel, digest);
+        } catch (IOException e) {
+            Log.e(TAG, "Copy of download failed", e);
+            displayErrorResult(updateIntent, R.string.unable_to_download_file);
+            if (destFileTmp.exists()) {
+                destFileTmp.delete();
+            }
+            return null;
+        } finally {
+            mDm.remove(id);
+        }
+
+        if (!destFileTmp.exists() || !destFileTmp.renameTo(destFile)) {
+            // The download was probably stopped. Exit silently
+            Log.d(TAG, "File not found, can't rename it");
+            return null;
+        }
+        return digest;
+    }
+
+    private static void copyAndHash(FileChannel in, FileChannel out, MessageDigest digest)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Get the file DownloadManager wrote, or null if it is not a plain file
+     */
+    private File fetchDownloadedFile(long id) {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(id);
+        try (Cursor c = mDm.query(query)) {
+            if (c.moveToFirst()) {
+                String localUri = c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI));
+                Uri uri = localUri != null ? Uri.parse(localUri) : null;
+                if (uri != null && "file".equals(uri.getScheme())) {
+                    File file = new File(uri.getPath());
+                    return file.isFile() ? file : null;
+                }
+            }
+        }
+        return null;
+    }
+
     private int fetchDownloadStatus(long id) {
         DownloadManager.Query query = new DownloadManager.Query();
         query.setFilterById(id);
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.service;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.requests.SegmentedDownloader;
+import com.simplixone.ota.utils.DownloadPolicy;
+import com.simplixone.ota.utils.Utils;
+
+import java.io.File;
+
+/**
+ * Starts the download {@link DownloadPolicy} scheduled once the policy allows
+ * it. The job ends right away: the download runs in {@link DownloadService},
+ * which pauses it when the policy no longer allows it and schedules this job
+ * again, rather than staying within the execution limit of a job.
+ */
+public class DownloadJobService extends JobService {
+    private static final String TAG = "DownloadJobService";
+
+    @Override
+    public boolean onStartJob(JobParameters jobParameters) {
+        DownloadPolicy policy = new DownloadPolicy(this);
+        UpdateInfo update = policy.getScheduledUpdate();
+        if (update == null || new File(Utils.makeUpdateFolder(), update.getFileName()).isFile()) {
+            // Gone from the manifest, or downloaded meanwhile
+            policy.cancel();
+            return false;
+        }
+        SegmentedDownloader active = SegmentedDownloader.getActive();
+        if (active != null && active.isRunning()) {
+            // Already started by the user
+            policy.cancel();
+            return false;
+        }
+        DownloadPolicy.Constraint constraint = policy.getBlockingConstraint(update);
+        if (constraint == DownloadPolicy.Constraint.STORAGE) {
+            Log.d(TAG, "Not enough free storage anymore, giving up on " + update.getFileName());
+            policy.cancel();
+            return false;
+        }
+        if (constraint != null) {
+            Log.d(TAG, "Download of " + update.getFileName() + " still deferred: " + constraint);
+            policy.schedule(update);
+            return false;
+        }
+
+        Log.d(TAG, "Starting scheduled download of " + update.getFileName());
+        DownloadService.startScheduled(this, update);
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        // Done with as soon as started
+        return false;
+    }
+}
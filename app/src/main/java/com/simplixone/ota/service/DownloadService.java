@@ -18,6 +18,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -27,22 +28,42 @@ import com.android.volley.VolleyLog;
 
 import org.json.JSONObject;
 import com.simplixone.ota.R;
+import com.simplixone.ota.UpdaterApplication;
+import com.simplixone.ota.activities.UpdaterActivity;
 import com.simplixone.ota.misc.Constants;
 import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.receiver.DownloadNotifier;
 import com.simplixone.ota.receiver.DownloadReceiver;
+import com.simplixone.ota.requests.SegmentedDownloader;
+import com.simplixone.ota.utils.DeltaPatcher;
+import com.simplixone.ota.utils.DownloadPolicy;
+import com.simplixone.ota.utils.DownloadPolicyMonitor;
+import com.simplixone.ota.utils.MD5;
 import com.simplixone.ota.utils.Utils;
 
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
 public class DownloadService extends IntentService
         implements Response.Listener<JSONObject>, Response.ErrorListener {
     private static final String TAG = DownloadService.class.getSimpleName();
 
     private static final String EXTRA_UPDATE_INFO = "update_info";
+    private static final String EXTRA_SCHEDULED = "scheduled";
 
     private SharedPreferences mPrefs;
     private UpdateInfo mInfo = null;
 
     public DownloadService() {
         super(TAG);
+        // Killed in the middle of a segmented download, resume it from its checkpoint
+        setIntentRedelivery(true);
     }
 
     public static void start(Context context, UpdateInfo ui) {
@@ -51,6 +72,17 @@ public class DownloadService extends IntentService
         context.startForegroundService(intent);
     }
 
+    /**
+     * Start a download scheduled by {@link DownloadPolicy}, paused as soon as
+     * the policy no longer allows it
+     */
+    public static void startScheduled(Context context, UpdateInfo ui) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.putExtra(EXTRA_UPDATE_INFO, (Parcelable) ui);
+        intent.putExtra(EXTRA_SCHEDULED, true);
+        context.startForegroundService(intent);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -70,7 +102,35 @@ public class DownloadService extends IntentService
             return;
         }
 
-        downloadFullZip();
+        boolean scheduled = intent.getBooleanExtra(EXTRA_SCHEDULED, false);
+        DownloadPolicyMonitor monitor = null;
+        if (scheduled) {
+            monitor = new DownloadPolicyMonitor(this, mInfo);
+            monitor.start();
+        }
+        try {
+            download(scheduled);
+        } finally {
+            if (monitor != null) {
+                monitor.stop();
+            }
+        }
+    }
+
+    private void download(boolean scheduled) {
+        // An interrupted full download is resumed rather than replaced by a delta
+        if (!SegmentedDownloader.isResumable(getPartFile(mInfo)) && downloadDelta()) {
+            return;
+        }
+
+        String engine = mPrefs.getString(Constants.DOWNLOAD_ENGINE_PREF, Constants.DOWNLOAD_ENGINE_DEFAULT);
+        // DownloadManager knows nothing of the policy, scheduled downloads are ours to pause
+        if (Constants.DOWNLOAD_ENGINE_SEGMENTED.equals(engine)
+                || scheduled || isResumable(mInfo)) {
+            downloadSegmented();
+        } else {
+            downloadFullZip();
+        }
     }
 
     private long enqueueDownload(String downloadUrl) {
@@ -82,6 +142,10 @@ public class DownloadService extends IntentService
         request.setTitle(getString(R.string.app_name));
         request.setVisibleInDownloadsUi(false);
         request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
+        // Straight into the updates folder, so completing it is a rename rather than a copy
+        File partFile = getPartFile(mInfo);
+        partFile.delete();
+        request.setDestinationUri(Uri.fromFile(partFile));
 
         final DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
         return dm.enqueue(request);
@@ -105,6 +169,236 @@ public class DownloadService extends IntentService
         sendBroadcast(intent);
     }
 
+    public static File getPartFile(UpdateInfo ui) {
+        return new File(Utils.makeUpdateFolder(), ui.getFileName() + Constants.DOWNLOAD_PART_EXT);
+    }
+
+    public static File getDeltaPartFile(UpdateInfo ui) {
+        return new File(Utils.makeUpdateFolder(), ui.getFileName()
+                + Constants.DOWNLOAD_DELTA_EXT + Constants.DOWNLOAD_PART_EXT);
+    }
+
+    /**
+     * Whether a download of the update, full or delta, was interrupted and can be resumed
+     */
+    public static boolean isResumable(UpdateInfo ui) {
+        return SegmentedDownloader.isResumable(getPartFile(ui))
+                || SegmentedDownloader.isResumable(getDeltaPartFile(ui));
+    }
+
+    /**
+     * Delete what was downloaded of the update so far, returns false if there was nothing
+     */
+    public static boolean discard(UpdateInfo ui) {
+        boolean full = SegmentedDownloader.discard(getPartFile(ui));
+        boolean delta = SegmentedDownloader.discard(getDeltaPartFile(ui));
+        return full || delta;
+    }
+
+    /**
+     * Get the updates kept in the updates folder, most recent first, whose
+     * blocks may be found in the one being downloaded
+     */
+    private List<File> getReusableFiles() {
+        File[] files = Utils.makeUpdateFolder().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".zip")
+                        && !file.getName().equals(mInfo.getFileName());
+            }
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        return Arrays.asList(files);
+    }
+
+    private void notifyDownloadStarted() {
+        mPrefs.edit()
+                .putLong(Constants.DOWNLOAD_ID, Constants.SEGMENTED_DOWNLOAD_ID)
+                .putString(Constants.DOWNLOAD_NAME, mInfo.getFileName())
+                .apply();
+
+        Utils.cancelNotification(this);
+
+        Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, Constants.SEGMENTED_DOWNLOAD_ID);
+        sendBroadcast(intent);
+    }
+
+    private Intent getUpdateIntent() {
+        Intent updateIntent = new Intent(this, UpdaterActivity.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        return updateIntent;
+    }
+
+    private void notifyDownloadComplete(Intent updateIntent, String destPath) {
+        updateIntent.putExtra(Constants.EXTRA_FINISHED_DOWNLOAD_ID, Constants.SEGMENTED_DOWNLOAD_ID);
+        updateIntent.putExtra(Constants.EXTRA_FINISHED_DOWNLOAD_PATH, destPath);
+        if (((UpdaterApplication) getApplicationContext()).isMainActivityActive()) {
+            startActivity(updateIntent);
+        } else {
+            DownloadNotifier.notifyDownloadComplete(this, updateIntent);
+        }
+    }
+
+    /**
+     * Download the delta package from the installed build, if the manifest lists
+     * one and its base package is still in the updates folder, and rebuild the
+     * update with it. Returns false when the full zip has to be downloaded instead.
+     */
+    private boolean downloadDelta() {
+        Map<String, String> delta = mInfo.getDelta();
+        if (delta == null) {
+            return false;
+        }
+        File baseFile = new File(Utils.makeUpdateFolder(), delta.get(UpdateInfo.DELTA_BASE_FILENAME));
+        File deltaPartFile = getDeltaPartFile(mInfo);
+        if (!baseFile.isFile()) {
+            Log.d(TAG, "Delta base package " + baseFile.getName() + " not found");
+            SegmentedDownloader.discard(deltaPartFile);
+            return false;
+        }
+        if (!MD5.checkMD5(this, delta.get(UpdateInfo.DELTA_BASE_MD5), baseFile)) {
+            Log.e(TAG, "Delta base package " + baseFile.getName() + " doesn't match");
+            SegmentedDownloader.discard(deltaPartFile);
+            return false;
+        }
+
+        SegmentedDownloader active = SegmentedDownloader.getActive();
+        if (active != null && active.isRunning()) {
+            Log.e(TAG, "A segmented download is already running");
+            return true;
+        }
+
+        Log.v(TAG, "Downloading delta from " + baseFile.getName());
+        SegmentedDownloader downloader = new SegmentedDownloader(
+                ((UpdaterApplication) getApplicationContext()).getTransport(),
+                delta.get(UpdateInfo.DELTA_URL), Utils.getUserAgentString(this),
+                deltaPartFile, mInfo.getFileName(), Constants.DOWNLOAD_CONNECTIONS);
+        notifyDownloadStarted();
+
+        boolean success = downloader.download();
+        mPrefs.edit().remove(Constants.DOWNLOAD_ID).apply();
+
+        if (downloader.getStatus() == SegmentedDownloader.STATUS_CANCELLED
+                || downloader.getStatus() == SegmentedDownloader.STATUS_PAUSED) {
+            Log.d(TAG, "Delta download stopped");
+            return true;
+        }
+        if (!success) {
+            // Most likely the network, what is checkpointed is kept so that
+            // the delta is resumed rather than given up for the full zip
+            Log.e(TAG, "Delta download failed");
+            DownloadNotifier.notifyDownloadError(this, getUpdateIntent(), R.string.unable_to_download_file);
+            return true;
+        }
+        String deltaMD5 = downloader.getMD5();
+        if ((deltaMD5 != null
+                ? !deltaMD5.equalsIgnoreCase(delta.get(UpdateInfo.DELTA_MD5))
+                : !MD5.checkMD5(delta.get(UpdateInfo.DELTA_MD5), deltaPartFile))) {
+            Log.e(TAG, "Delta package doesn't match, falling back to the full zip");
+            SegmentedDownloader.discard(deltaPartFile);
+            return false;
+        }
+
+        // Rebuilt under the temporary name, so it shows as being completed meanwhile
+        String destPath = Utils.makeUpdateFolder().getPath() + "/" + mInfo.getFileName();
+        File destFile = new File(destPath);
+        File tmpFile = new File(destPath + Constants.DOWNLOAD_TMP_EXT);
+        long startTime = SystemClock.elapsedRealtime();
+        String md5;
+        try {
+            md5 = DeltaPatcher.apply(baseFile, deltaPartFile, tmpFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to apply delta, falling back to the full zip", e);
+            tmpFile.delete();
+            return false;
+        } finally {
+            deltaPartFile.delete();
+        }
+        if (!md5.equalsIgnoreCase(mInfo.getMD5()) || !tmpFile.renameTo(destFile)) {
+            Log.e(TAG, "Rebuilt package doesn't match, falling back to the full zip");
+            tmpFile.delete();
+            return false;
+        }
+        Log.d(TAG, "Delta applied in " + (SystemClock.elapsedRealtime() - startTime) + "ms, "
+                + downloader.getTotalBytes() + " bytes downloaded instead of " + mInfo.getFileSize());
+        // Whatever was left of a full download of the same update
+        SegmentedDownloader.discard(getPartFile(mInfo));
+
+        // Verified while rebuilt, no need to read the whole file again
+        MD5.saveMD5(this, destFile, md5);
+        notifyDownloadComplete(getUpdateIntent(), destPath);
+        return true;
+    }
+
+    /**
+     * Download over parallel range requests, in this service's worker thread
+     */
+    private void downloadSegmented() {
+        Log.v(TAG, "Downloading full zip in segments");
+
+        SegmentedDownloader active = SegmentedDownloader.getActive();
+        if (active != null && active.isRunning()) {
+            Log.e(TAG, "A segmented download is already running");
+            return;
+        }
+
+        String destPath = Utils.makeUpdateFolder().getPath() + "/" + mInfo.getFileName();
+        File partFile = getPartFile(mInfo);
+        SegmentedDownloader downloader = new SegmentedDownloader(
+                ((UpdaterApplication) getApplicationContext()).getTransport(),
+                mInfo.getDownloadUrl(), Utils.getUserAgentString(this),
+                partFile, mInfo.getFileName(), Constants.DOWNLOAD_CONNECTIONS);
+        if (mInfo.getBlockMapUrl() != null) {
+            downloader.setReusableFiles(mInfo.getBlockMapUrl(), getReusableFiles());
+        }
+
+        notifyDownloadStarted();
+
+        boolean success = downloader.download();
+        // Kept only while running, so that it is resumed if we get killed
+        mPrefs.edit().remove(Constants.DOWNLOAD_ID).apply();
+
+        if (downloader.getStatus() == SegmentedDownloader.STATUS_CANCELLED
+                || downloader.getStatus() == SegmentedDownloader.STATUS_PAUSED) {
+            Log.d(TAG, "Segmented download stopped");
+            return;
+        }
+
+        Intent updateIntent = getUpdateIntent();
+
+        // Replaces any previous file atomically
+        long startTime = SystemClock.elapsedRealtime();
+        File destFile = new File(destPath);
+        if (!success || !partFile.renameTo(destFile)) {
+            if (success) {
+                partFile.delete();
+            }
+            // Otherwise what is checkpointed is kept to resume from
+            DownloadNotifier.notifyDownloadError(this, updateIntent, R.string.unable_to_download_file);
+            return;
+        }
+
+        Log.d(TAG, "Download committed in " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+
+        String md5 = downloader.getMD5();
+        if (md5 != null) {
+            // Hashed along the way, no need to read the whole file again to verify it
+            MD5.saveMD5(this, destFile, md5);
+        }
+
+        notifyDownloadComplete(updateIntent, destPath);
+    }
+
     @Override
     public void onErrorResponse(VolleyError error) {
         VolleyLog.e("Error: ", error.getMessage());
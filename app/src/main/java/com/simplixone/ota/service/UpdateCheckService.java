@@ -13,27 +13,41 @@ package com.simplixone.ota.service;
 import android.app.job.JobParameters;
 import android.app.job.JobService;
 
+import com.simplixone.ota.utils.CheckSchedulePolicy;
 import com.simplixone.ota.utils.UpdateChecker;
 import com.simplixone.ota.utils.UpdaterCheckerResult;
 
 public class UpdateCheckService extends JobService {
 
+    private UpdaterCheckerResult mListener;
+
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
-        new UpdateChecker(this, new UpdaterCheckerResult() {
+        mListener = new UpdaterCheckerResult() {
             @Override
             public void onResult(boolean result) {
+                mListener = null;
                 jobFinished(jobParameters, false);
-                UpdateChecker.scheduleUpdateService(UpdateCheckService.this);
+                UpdateChecker.scheduleUpdateService(UpdateCheckService.this, result);
+            }
+
+            @Override
+            public void onCancelled() {
+                mListener = null;
+                // Not a failure, run again as soon as the constraints allow it
+                new CheckSchedulePolicy(UpdateCheckService.this).reschedule();
             }
-        }).check();
+        };
+        new UpdateChecker(this, mListener).check();
         return true;
     }
 
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        UpdateChecker.cancelAllRequests(this);
-        UpdateChecker.scheduleUpdateService(this);
+        if (mListener != null) {
+            // Other callers waiting for the same check still get its result
+            UpdateChecker.cancel(this, mListener);
+        }
         return false;
     }
 
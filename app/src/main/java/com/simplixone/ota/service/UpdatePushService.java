@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.simplixone.ota.UpdaterApplication;
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.utils.UpdateChecker;
+import com.simplixone.ota.utils.UpdaterCheckerResult;
+import com.simplixone.ota.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Optional push mode: keeps a server-sent events stream open on the push
+ * server and runs an update check as soon as a new build is announced for
+ * this device. A server answering long-polls, one event per response, works
+ * too since the stream is simply reopened. The periodic check stays scheduled
+ * as a fallback, and is pushed back by every check a push triggered.
+ * <p/>
+ * JobScheduler stops the job at its execution limit, or when the network goes
+ * away. The stream is then reopened by a fresh job, without backoff, which is
+ * left for streams that keep failing.
+ */
+public class UpdatePushService extends JobService {
+    private static final String TAG = "UpdatePushService";
+    // The server is expected to send keep-alive comments more often than this
+    private static final int READ_TIMEOUT = 5 * 60 * 1000; // 5 minutes
+    private static final long MIN_RECONNECT_DELAY = 5000; // 5 seconds
+    // A stream closed sooner without any event counts as a failure
+    private static final long MIN_STREAM_DURATION = 30 * 1000; // 30 seconds
+    private static final long JOB_BACKOFF = 60 * 1000; // 1 minute
+    private static final int MAX_FAILURES = 5;
+    private static final String EVENT_BUILD = "build";
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private StreamThread mThread;
+
+    /**
+     * Start or stop listening to the push server, as the user chose
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (!isEnabled(context)) {
+            jobScheduler.cancel(Constants.UPDATE_PUSH_JOB_ID);
+            return;
+        }
+        if (jobScheduler.getPendingJob(Constants.UPDATE_PUSH_JOB_ID) != null) {
+            return;
+        }
+        reschedule(context);
+    }
+
+    private static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PUSH_UPDATES_PREF, Constants.PUSH_UPDATES_DEFAULT)
+                && Utils.getPushURL() != null;
+    }
+
+    /**
+     * Schedule a fresh job, replacing the current one and its backoff
+     */
+    private static void reschedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.schedule(new JobInfo.Builder(Constants.UPDATE_PUSH_JOB_ID,
+                new ComponentName(context, UpdatePushService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(JOB_BACKOFF, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters jobParameters) {
+        if (!isEnabled(this)) {
+            return false;
+        }
+        mThread = new StreamThread(jobParameters, Utils.getPushURL());
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        if (mThread != null) {
+            mThread.close();
+            mThread = null;
+        }
+        // Most likely the execution limit rather than a failure: reopen the
+        // stream right away, or once the network is back. Not if the job was
+        // cancelled because the user turned push off.
+        if (isEnabled(this)) {
+            reschedule(this);
+        }
+        return false;
+    }
+
+    private void onBuildPublished() {
+        Log.d(TAG, "New build announced, checking for updates");
+        new UpdateChecker(this, new UpdaterCheckerResult() {
+            @Override
+            public void onResult(boolean result) {
+                // No need to poll again soon after a pushed check
+                UpdateChecker.scheduleUpdateService(UpdatePushService.this, result);
+            }
+
+            @Override
+            public void onCancelled() {
+                // Never cancelled
+            }
+        }).check();
+    }
+
+    private class StreamThread extends Thread {
+        private final JobParameters mParams;
+        private final String mUrl;
+        private final SharedPreferences mPrefs;
+        private volatile boolean mClosed;
+        private volatile HttpURLConnection mConnection;
+
+        StreamThread(JobParameters params, String url) {
+            super(TAG);
+            mParams = params;
+            mUrl = url;
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(UpdatePushService.this);
+        }
+
+        void close() {
+            mClosed = true;
+            interrupt();
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            int failures = 0;
+            while (!mClosed) {
+                long start = SystemClock.elapsedRealtime();
+                boolean healthy;
+                try {
+                    // The server ended the stream or answered a long-poll, which
+                    // is fine unless it keeps closing it right away
+                    healthy = listen()
+                            || SystemClock.elapsedRealtime() - start >= MIN_STREAM_DURATION;
+                    if (!healthy) {
+                        Log.d(TAG, "Push stream closed right away");
+                    }
+                } catch (IOException e) {
+                    if (mClosed) {
+                        return;
+                    }
+                    Log.d(TAG, "Push stream failed: " + e.getMessage());
+                    healthy = false;
+                }
+                if (mClosed) {
+                    return;
+                }
+                if (healthy) {
+                    failures = 0;
+                } else if (++failures >= MAX_FAILURES) {
+                    // Let JobScheduler back off, periodic checks go on meanwhile
+                    jobFinished(mParams, true);
+                    return;
+                }
+                try {
+                    Thread.sleep(MIN_RECONNECT_DELAY << failures);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Read the stream until the server closes it, returns whether any event came in
+         */
+        private boolean listen() throws IOException {
+            HttpURLConnection connection = ((UpdaterApplication) getApplication())
+                    .getTransport().open(new URL(mUrl));
+            mConnection = connection;
+            try {
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setRequestProperty("Accept", "text/event-stream");
+                connection.setRequestProperty("Cache-Control", "no-cache");
+                connection.setRequestProperty("User-Agent", Utils.getUserAgentString(UpdatePushService.this));
+                String lastEventId = mPrefs.getString(Constants.PUSH_LAST_EVENT_ID_PREF, null);
+                if (lastEventId != null) {
+                    connection.setRequestProperty("Last-Event-ID", lastEventId);
+                }
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected response " + connection.getResponseCode());
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        connection.getInputStream(), StandardCharsets.UTF_8));
+                return readEvents(reader);
+            } finally {
+                connection.disconnect();
+                mConnection = null;
+            }
+        }
+
+        private boolean readEvents(BufferedReader reader) throws IOException {
+            boolean received = false;
+            String event = null;
+            String id = null;
+            boolean hasData = false;
+            String line;
+            while (!mClosed && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // End of an event
+                    if (hasData) {
+                        dispatch(event, id);
+                        received = true;
+                    }
+                    event = null;
+                    id = null;
+                    hasData = false;
+                } else if (line.startsWith(":")) {
+                    // Keep-alive comment
+                } else if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                } else if (line.startsWith("id:")) {
+                    id = line.substring(3).trim();
+                } else if (line.startsWith("data:")) {
+                    hasData = true;
+                }
+            }
+            return received;
+        }
+
+        private void dispatch(String event, String id) {
+            if (id != null) {
+                mPrefs.edit().putString(Constants.PUSH_LAST_EVENT_ID_PREF, id).apply();
+            }
+            // The stream is specific to this device, any build event is ours
+            if (event != null && !EVENT_BUILD.equals(event)) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBuildPublished();
+                }
+            });
+        }
+    }
+}
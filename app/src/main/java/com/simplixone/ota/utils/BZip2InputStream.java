@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decompresses a single bzip2 stream, as found in bsdiff patches, which the
+ * platform has no decoder for. Blocks are decoded one at a time, so memory
+ * stays at 4 bytes per byte of the block size of the stream, 3.6MB at most,
+ * and the CRC of every block and of the stream is checked.
+ */
+public class BZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final int MAX_GROUPS = 6;
+    private static final int GROUP_SIZE = 50;
+    private static final int MAX_CODE_LENGTH = 20;
+    private static final int MAX_ALPHA_SIZE = 258;
+    private static final int MAX_SELECTORS = 18002;
+    private static final int RUN_A = 0;
+    private static final int RUN_B = 1;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final InputStream mIn;
+    private final byte[] mSingle = new byte[1];
+    private long mBits;
+    private int mBitCount;
+
+    private final int[] mTT;
+    private boolean mInBlock;
+    private boolean mEnd;
+    private int mComputedStreamCRC;
+
+    // State of the block being output
+    private int mBlockCRC;
+    private int mComputedBlockCRC;
+    private int mPosition;
+    private int mLeft;
+    private int mLast;
+    private int mRunLength;
+    private int mRepeat;
+
+    // Huffman tables of the block being decoded
+    private final byte[] mSelectors = new byte[MAX_SELECTORS];
+    private final int[][] mLimit = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+    private final int[][] mBase = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+    private final int[][] mPerm = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    private final int[] mMinLength = new int[MAX_GROUPS];
+    private final int[] mMaxLength = new int[MAX_GROUPS];
+
+    public BZip2InputStream(InputStream in) throws IOException {
+        mIn = in;
+        if (readBits(8) != 'B' || readBits(8) != 'Z' || readBits(8) != 'h') {
+            throw new IOException("Not a bzip2 stream");
+        }
+        int level = readBits(8) - '0';
+        if (level < 1 || level > 9) {
+            throw new IOException("Invalid bzip2 block size");
+        }
+        mTT = new int[level * 100000];
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < length) {
+            if (mRepeat > 0) {
+                int count = Math.min(mRepeat, length - read);
+                for (int i = 0; i < count; i++) {
+                    updateCRC(mLast);
+                    buffer[offset + read++] = (byte) mLast;
+                }
+                mRepeat -= count;
+                continue;
+            }
+            if (mLeft == 0) {
+                if (!nextBlock()) {
+                    return read == 0 ? -1 : read;
+                }
+                continue;
+            }
+            // Hot loop, on locals
+            int[] tt = mTT;
+            int position = mPosition;
+            int left = mLeft;
+            int last = mLast;
+            int runLength = mRunLength;
+            int crc = mComputedBlockCRC;
+            while (read < length && left > 0) {
+                int entry = tt[position];
+                int b = entry & 0xff;
+                position = entry >>> 8;
+                left--;
+                if (runLength == 4) {
+                    // Count of the repeats following a run of 4
+                    mRepeat = b;
+                    runLength = 0;
+                    break;
+                }
+                if (b == last) {
+                    runLength++;
+                } else {
+                    last = b;
+                    runLength = 1;
+                }
+                crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+                buffer[offset + read++] = (byte) b;
+            }
+            mPosition = position;
+            mLeft = left;
+            mLast = last;
+            mRunLength = runLength;
+            mComputedBlockCRC = crc;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void updateCRC(int b) {
+        mComputedBlockCRC = (mComputedBlockCRC << 8) ^ CRC_TABLE[((mComputedBlockCRC >>> 24) ^ b) & 0xff];
+    }
+
+    /**
+     * Check the block just output and decode the next one, returns false at the end of the stream
+     */
+    private boolean nextBlock() throws IOException {
+        if (mEnd) {
+            return false;
+        }
+        if (mInBlock) {
+            mInBlock = false;
+            if (~mComputedBlockCRC != mBlockCRC) {
+                throw new IOException("bzip2 block CRC mismatch");
+            }
+            mComputedStreamCRC = ((mComputedStreamCRC << 1) | (mComputedStreamCRC >>> 31)) ^ mBlockCRC;
+        }
+        mLast = -1;
+        mRunLength = 0;
+        mComputedBlockCRC = 0xffffffff;
+
+        long magic = ((long) readBits(24) << 24) | readBits(24);
+        if (magic == END_MAGIC) {
+            if (readBits(32) != mComputedStreamCRC) {
+                throw new IOException("bzip2 stream CRC mismatch");
+            }
+            mEnd = true;
+            return false;
+        }
+        if (magic != BLOCK_MAGIC) {
+            throw new IOException("Invalid bzip2 block header");
+        }
+        mBlockCRC = readBits(32);
+        if (readBits(1) != 0) {
+            throw new IOException("Randomised bzip2 blocks are not supported");
+        }
+        int origin = readBits(24);
+        int length = decodeBlock();
+        if (origin >= length) {
+            throw new IOException("Invalid bzip2 block origin");
+        }
+        mPosition = mTT[origin] >>> 8;
+        mLeft = length;
+        mInBlock = true;
+        return true;
+    }
+
+    /**
+     * Decode the Huffman, move-to-front and run-length coding of a block and
+     * undo its Burrows-Wheeler transform, returns the length of the block
+     */
+    private int decodeBlock() throws IOException {
+        // Symbols used in the block
+        int[] used = new int[256];
+        int usedCount = 0;
+        int groups = readBits(16);
+        for (int i = 0; i < 16; i++) {
+            if ((groups & (0x8000 >>> i)) == 0) {
+                continue;
+            }
+            int symbols = readBits(16);
+            for (int j = 0; j < 16; j++) {
+                if ((symbols & (0x8000 >>> j)) != 0) {
+                    used[usedCount++] = i * 16 + j;
+                }
+            }
+        }
+        if (usedCount == 0) {
+            throw new IOException("Empty bzip2 symbol map");
+        }
+        int alphaSize = usedCount + 2;
+
+        int tables = readBits(3);
+        int selectors = readBits(15);
+        if (tables < 2 || tables > MAX_GROUPS || selectors < 1) {
+            throw new IOException("Invalid bzip2 Huffman tables");
+        }
+        byte[] mtfTables = {0, 1, 2, 3, 4, 5};
+        for (int i = 0; i < selectors; i++) {
+            int j = 0;
+            while (readBits(1) != 0) {
+                if (++j >= tables) {
+                    throw new IOException("Invalid bzip2 selector");
+                }
+            }
+            byte table = mtfTables[j];
+            System.arraycopy(mtfTables, 0, mtfTables, 1, j);
+            mtfTables[0] = table;
+            // Encoders may write more than can be used, those are ignored
+            if (i < MAX_SELECTORS) {
+                mSelectors[i] = table;
+            }
+        }
+        selectors = Math.min(selectors, MAX_SELECTORS);
+
+        int[] lengths = new int[alphaSize];
+        for (int t = 0; t < tables; t++) {
+            int length = readBits(5);
+            for (int i = 0; i < alphaSize; i++) {
+                while (true) {
+                    if (length < 1 || length > MAX_CODE_LENGTH) {
+                        throw new IOException("Invalid bzip2 code length");
+                    }
+                    if (readBits(1) == 0) {
+                        break;
+                    }
+                    length += readBits(1) == 0 ? 1 : -1;
+                }
+                lengths[i] = length;
+            }
+            createDecodeTable(t, lengths, alphaSize);
+        }
+
+        int[] counts = new int[256];
+        int[] mtf = new int[256];
+        for (int i = 0; i < 256; i++) {
+            mtf[i] = i;
+        }
+        int endOfBlock = usedCount + 1;
+        int length = 0;
+        int group = -1;
+        int groupLeft = 0;
+        int table = 0;
+        int symbol;
+        int run = 0;
+        int runBit = 1;
+        while (true) {
+            if (groupLeft == 0) {
+                if (++group >= selectors) {
+                    throw new IOException("bzip2 selectors exhausted");
+                }
+                groupLeft = GROUP_SIZE;
+                table = mSelectors[group];
+            }
+            groupLeft--;
+            symbol = readSymbol(table, alphaSize);
+
+            if (symbol == RUN_A || symbol == RUN_B) {
+                run += (symbol == RUN_A ? 1 : 2) * runBit;
+                runBit <<= 1;
+                if (run > mTT.length) {
+                    throw new IOException("bzip2 block too long");
+                }
+                continue;
+            }
+            if (run > 0) {
+                // Flush the run of the symbol at the front
+                int b = used[mtf[0]];
+                if (length + run > mTT.length) {
+                    throw new IOException("bzip2 block too long");
+                }
+                counts[b] += run;
+                while (run-- > 0) {
+                    mTT[length++] = b;
+                }
+                run = 0;
+                runBit = 1;
+            }
+            if (symbol == endOfBlock) {
+                break;
+            }
+            int index = symbol - 1;
+            int front = mtf[index];
+            System.arraycopy(mtf, 0, mtf, 1, index);
+            mtf[0] = front;
+            int b = used[front];
+            if (length >= mTT.length) {
+                throw new IOException("bzip2 block too long");
+            }
+            counts[b]++;
+            mTT[length++] = b;
+        }
+
+        // Inverse Burrows-Wheeler transform, each entry links to the next one
+        int[] starts = new int[256];
+        for (int i = 0, sum = 0; i < 256; i++) {
+            starts[i] = sum;
+            sum += counts[i];
+        }
+        for (int i = 0; i < length; i++) {
+            int b = mTT[i] & 0xff;
+            mTT[starts[b]++] |= i << 8;
+        }
+        return length;
+    }
+
+    private void createDecodeTable(int table, int[] lengths, int alphaSize) {
+        int min = MAX_CODE_LENGTH;
+        int max = 0;
+        for (int i = 0; i < alphaSize; i++) {
+            min = Math.min(min, lengths[i]);
+            max = Math.max(max, lengths[i]);
+        }
+        mMinLength[table] = min;
+        mMaxLength[table] = max;
+
+        int[] perm = mPerm[table];
+        int[] base = mBase[table];
+        int[] limit = mLimit[table];
+        int p = 0;
+        for (int length = min; length <= max; length++) {
+            for (int i = 0; i < alphaSize; i++) {
+                if (lengths[i] == length) {
+                    perm[p++] = i;
+                }
+            }
+        }
+        Arrays.fill(base, 0);
+        Arrays.fill(limit, 0);
+        for (int i = 0; i < alphaSize; i++) {
+            base[lengths[i] + 1]++;
+        }
+        for (int i = 1; i < base.length; i++) {
+            base[i] += base[i - 1];
+        }
+        int code = 0;
+        for (int length = min; length <= max; length++) {
+            code += base[length + 1] - base[length];
+            limit[length] = code - 1;
+            code <<= 1;
+        }
+        for (int length = min + 1; length <= max; length++) {
+            base[length] = ((limit[length - 1] + 1) << 1) - base[length];
+        }
+    }
+
+    private int readSymbol(int table, int alphaSize) throws IOException {
+        int length = mMinLength[table];
+        int code = readBits(length);
+        while (code > mLimit[table][length]) {
+            if (++length > mMaxLength[table]) {
+                throw new IOException("Invalid bzip2 Huffman code");
+            }
+            code = (code << 1) | readBits(1);
+        }
+        int index = code - mBase[table][length];
+        if (index < 0 || index >= alphaSize) {
+            throw new IOException("Invalid bzip2 Huffman code");
+        }
+        return mPerm[table][index];
+    }
+
+    private int readBits(int count) throws IOException {
+        while (mBitCount < count) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Truncated bzip2 stream");
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+        mBitCount -= count;
+        return (int) ((mBits >>> mBitCount) & ((1L << count) - 1));
+    }
+}
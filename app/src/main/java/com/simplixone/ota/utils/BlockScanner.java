@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.simplixone.ota.misc.BlockMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks for the blocks of a {@link BlockMap} at any offset of local files,
+ * copying those found in place into the file being downloaded.
+ * <p/>
+ * A file is memory-mapped a region at a time, so multi-GB files neither go
+ * through the Java heap nor exhaust the address space, and regions are
+ * scanned concurrently. The rolling checksum is updated byte by byte and a
+ * window is only hashed when it matches the checksum of some block.
+ */
+public class BlockScanner {
+    private static final String TAG = "BlockScanner";
+    private static final long REGION_SIZE = 64 * 1024 * 1024;
+
+    private final BlockMap mMap;
+    private final FileChannel mTarget;
+    private final AtomicIntegerArray mFound;
+    private final AtomicInteger mFoundCount = new AtomicInteger();
+    private final AtomicLong mReusedBytes = new AtomicLong();
+
+    /**
+     * @param target the file being downloaded, preallocated to its full size
+     */
+    public BlockScanner(BlockMap map, FileChannel target) {
+        mMap = map;
+        mTarget = target;
+        mFound = new AtomicIntegerArray(map.getBlockCount());
+    }
+
+    public boolean isFound(int block) {
+        return mFound.get(block) != 0;
+    }
+
+    /**
+     * Get how many bytes were copied from local files so far
+     */
+    public long getReusedBytes() {
+        return mReusedBytes.get();
+    }
+
+    private boolean isComplete() {
+        return mFoundCount.get() == mMap.getBlockCount();
+    }
+
+    /**
+     * Copy the blocks found in the given file, using up to the given number of threads
+     */
+    public void scan(File source, int threads) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        long reusedBefore = getReusedBytes();
+        final int blockSize = mMap.getBlockSize();
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            final FileChannel channel = file.getChannel();
+            // Offsets where a full block may start
+            final long windows = channel.size() - blockSize + 1;
+            if (windows <= 0 || isComplete()) {
+                return;
+            }
+            final long regionSize = Math.max(blockSize,
+                    Math.min(REGION_SIZE, (windows + threads - 1) / threads));
+            final int regions = (int) ((windows + regionSize - 1) / regionSize);
+            final AtomicInteger nextRegion = new AtomicInteger();
+            final IOException[] error = new IOException[1];
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(threads, regions); i++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int region;
+                            while (!isComplete() && (region = nextRegion.getAndIncrement()) < regions) {
+                                long from = region * regionSize;
+                                scanRegion(channel, from, Math.min(from + regionSize, windows));
+                            }
+                        } catch (IOException e) {
+                            synchronized (error) {
+                                error[0] = e;
+                            }
+                        }
+                    }
+                }, TAG);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            synchronized (error) {
+                if (error[0] != null) {
+                    throw error[0];
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+        Log.d(TAG, "Found " + (getReusedBytes() - reusedBefore) + " bytes in " + source.getName()
+                + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Look for blocks starting at offsets [from, to) of the source
+     */
+    private void scanRegion(FileChannel channel, long from, long to) throws IOException {
+        int blockSize = mMap.getBlockSize();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                from, to - from + blockSize - 1);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] window = new byte[blockSize];
+        int windows = (int) (to - from);
+        int position = 0;
+        boolean fresh = true;
+        int checksum = 0;
+        while (position < windows) {
+            if (fresh) {
+                buffer.position(position);
+                buffer.get(window, 0, blockSize);
+                checksum = BlockMap.checksum(window, 0, blockSize);
+                fresh = false;
+            }
+            int[] candidates = mMap.getCandidates(checksum);
+            if (candidates != null && copyMatches(candidates, buffer, position, window, digest)) {
+                if (isComplete()) {
+                    return;
+                }
+                // Blocks don't overlap in the update, look right after this one
+                position += blockSize;
+                fresh = true;
+                continue;
+            }
+            if (position + 1 < windows) {
+                checksum = BlockMap.roll(checksum, blockSize,
+                        buffer.get(position), buffer.get(position + blockSize));
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Copy the window at the given position into the blocks it matches,
+     * returns whether it matched any
+     */
+    private boolean copyMatches(int[] candidates, MappedByteBuffer buffer, int position,
+                                byte[] window, MessageDigest digest) throws IOException {
+        buffer.position(position);
+        buffer.get(window, 0, window.length);
+        byte[] strong = digest.digest(window);
+        boolean matched = false;
+        for (int block : candidates) {
+            if (!mMap.matches(block, strong)) {
+                continue;
+            }
+            matched = true;
+            // First one to find the block writes it
+            if (!mFound.compareAndSet(block, 0, 1)) {
+                continue;
+            }
+            ByteBuffer data = ByteBuffer.wrap(window);
+            long offset = mMap.getBlockStart(block);
+            while (data.hasRemaining()) {
+                mTarget.write(data, offset + data.position());
+            }
+            mReusedBytes.addAndGet(window.length);
+            mFoundCount.incrementAndGet();
+        }
+        return matched;
+    }
+}
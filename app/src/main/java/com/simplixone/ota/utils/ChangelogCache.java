@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.simplixone.ota.UpdaterApplication;
+import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.requests.ChangelogRequest;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Changelogs of builds, fetched only when the user asks to see one and kept
+ * in bounded least recently used caches, in memory and on disk.
+ */
+public class ChangelogCache {
+    private static final String TAG = "ChangelogCache";
+    private static final String DIR = "changelogs";
+    private static final int MAX_MEMORY_CHARS = 64 * 1024;
+    private static final long MAX_DISK_BYTES = 512 * 1024;
+
+    private static final LruCache<String, String> sMemoryCache =
+            new LruCache<String, String>(MAX_MEMORY_CHARS) {
+                @Override
+                protected int sizeOf(String key, String value) {
+                    return value.length();
+                }
+            };
+
+    /**
+     * Get the changelog of the given build, the callback is called on the main
+     * thread with null if it couldn't be fetched
+     */
+    public static void get(final Context context, final UpdateInfo update, final Callback callback) {
+        if (update.getChangelogUrl() == null) {
+            callback.onChangelog(null);
+            return;
+        }
+        final String key = getKey(update);
+        String changelog = sMemoryCache.get(key);
+        if (changelog != null) {
+            callback.onChangelog(changelog);
+            return;
+        }
+        final File file = new File(getDir(context), key);
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... voids) {
+                if (!file.exists()) {
+                    return null;
+                }
+                try {
+                    String changelog = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+                    // Keep track of recent use for eviction
+                    file.setLastModified(System.currentTimeMillis());
+                    return changelog;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read cached changelog", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String changelog) {
+                if (changelog != null) {
+                    sMemoryCache.put(key, changelog);
+                    callback.onChangelog(changelog);
+                } else {
+                    fetch(context, update, key, callback);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static void fetch(final Context context, UpdateInfo update, final String key,
+                              final Callback callback) {
+        ChangelogRequest request = new ChangelogRequest(update.getChangelogUrl(),
+                update.getChangelogMD5(), Utils.getUserAgentString(context),
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String changelog) {
+                        sMemoryCache.put(key, changelog);
+                        store(context, key, changelog);
+                        callback.onChangelog(changelog);
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        Log.e(TAG, "Unable to fetch changelog: " + error.toString());
+                        callback.onChangelog(null);
+                    }
+                });
+        request.setShouldCache(false);
+        ((UpdaterApplication) context.getApplicationContext()).getQueue().add(request);
+    }
+
+    private static void store(Context context, final String key, final String changelog) {
+        final File dir = getDir(context);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileUtils.writeStringToFile(new File(dir, key), changelog, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to cache changelog", e);
+                }
+                trim(dir);
+            }
+        });
+    }
+
+    private static void trim(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest used first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (int i = 0; i < files.length - 1 && total > MAX_DISK_BYTES; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static File getDir(Context context) {
+        return new File(context.getCacheDir(), DIR);
+    }
+
+    private static String getKey(UpdateInfo update) {
+        // A republished changelog comes with a new md5, and a new key
+        String md5 = update.getChangelogMD5();
+        return md5 != null ? update.getFileName() + "-" + md5 : update.getFileName();
+    }
+
+    public interface Callback {
+        void onChangelog(String changelog);
+    }
+}
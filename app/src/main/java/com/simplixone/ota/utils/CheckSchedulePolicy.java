@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.receiver.ConnectivityReceiver;
+import com.simplixone.ota.service.UpdateCheckService;
+
+import java.util.Random;
+
+/**
+ * Decides when the next background update check runs: the regular period
+ * after a successful check, an exponential backoff after failures, both
+ * spread with random jitter so devices don't hit the server together.
+ * <p/>
+ * A check that failed, or fell due, while the device was offline is caught up
+ * as soon as validated connectivity comes back rather than after the backoff,
+ * at most once every {@link #MIN_CATCH_UP_INTERVAL}.
+ */
+public class CheckSchedulePolicy {
+    private static final String TAG = "CheckSchedulePolicy";
+
+    private static final long MIN_BACKOFF = 15 * 60 * 1000; // 15 minutes
+    private static final double JITTER_RATIO = 0.1;
+    private static final long MIN_CATCH_UP_INTERVAL = 30 * 60 * 1000; // 30 minutes
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+
+    public CheckSchedulePolicy(Context context) {
+        mContext = context;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    public void onCheckSucceeded() {
+        mPrefs.edit().putInt(Constants.CHECK_FAILURES_PREF, 0).apply();
+        setCatchUpPending(false);
+        schedule(jitter(Constants.UPDATE_DEFAULT_FREQ));
+    }
+
+    public void onCheckFailed() {
+        int failures = mPrefs.getInt(Constants.CHECK_FAILURES_PREF, 0) + 1;
+        mPrefs.edit().putInt(Constants.CHECK_FAILURES_PREF, failures).apply();
+        long delay = jitter(getBackoff(failures));
+        // Never come back before the server told us to
+        long retryAfter = mPrefs.getLong(Constants.CHECK_RETRY_AFTER_PREF, 0) - System.currentTimeMillis();
+        schedule(Math.max(delay, Math.min(retryAfter, Constants.UPDATE_DEFAULT_FREQ)));
+        if (!Utils.isOnline(mContext)) {
+            // Lost connectivity, retry once it is back instead of after the backoff
+            setCatchUpPending(true);
+        }
+    }
+
+    /**
+     * Reschedule after a reboot, keeping the due time we had before
+     */
+    public void onBoot() {
+        long due = getNextCheckDue();
+        long delay = due - System.currentTimeMillis();
+        if (due <= 0 || delay > 2 * Constants.UPDATE_DEFAULT_FREQ) {
+            // Never scheduled, or the clock moved
+            delay = jitter(Constants.UPDATE_DEFAULT_FREQ);
+        } else if (delay < 0) {
+            // Overdue, still spread the checks of devices booting together
+            delay = (long) (mRandom.nextDouble() * MIN_BACKOFF);
+        }
+        schedule(delay);
+        // Network callbacks don't survive a reboot
+        if (isCatchUpPending()) {
+            setCatchUpPending(true);
+        }
+    }
+
+    /**
+     * Validated connectivity is back, run the pending catch-up check now
+     */
+    public void onNetworkAvailable() {
+        if (!isCatchUpPending()) {
+            setCatchUpPending(false);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long sinceLast = now - mPrefs.getLong(Constants.LAST_CATCH_UP_PREF, 0);
+        if (sinceLast >= 0 && sinceLast < MIN_CATCH_UP_INTERVAL) {
+            Log.d(TAG, "Catch-up check rate limited, waiting for the next network change");
+            return;
+        }
+        mPrefs.edit().putLong(Constants.LAST_CATCH_UP_PREF, now).apply();
+        setCatchUpPending(false);
+        Log.d(TAG, "Connectivity is back, catching up on the missed check");
+        schedule(0);
+    }
+
+    private boolean isCatchUpPending() {
+        return mPrefs.getBoolean(Constants.CATCH_UP_PENDING_PREF, false);
+    }
+
+    private void setCatchUpPending(boolean pending) {
+        mPrefs.edit().putBoolean(Constants.CATCH_UP_PENDING_PREF, pending).apply();
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        PendingIntent intent = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(mContext, ConnectivityReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        if (pending) {
+            cm.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                    .build(), intent);
+        } else {
+            try {
+                cm.unregisterNetworkCallback(intent);
+            } catch (IllegalArgumentException e) {
+                // Was not registered
+            }
+        }
+    }
+
+    /**
+     * Reschedule the pending check with the constraints currently set, keeping its due time
+     */
+    public void reschedule() {
+        long due = getNextCheckDue();
+        schedule(due <= 0 ? jitter(Constants.UPDATE_DEFAULT_FREQ)
+                : Math.max(due - System.currentTimeMillis(), 0));
+    }
+
+    public long getNextCheckDue() {
+        return mPrefs.getLong(Constants.NEXT_CHECK_DUE_PREF, 0);
+    }
+
+    private static long getBackoff(int failures) {
+        long backoff = MIN_BACKOFF << Math.min(failures - 1, 16);
+        return Math.min(backoff, Constants.UPDATE_DEFAULT_FREQ);
+    }
+
+    private long jitter(long delay) {
+        double factor = 1 + (mRandom.nextDouble() * 2 - 1) * JITTER_RATIO;
+        return (long) (delay * factor);
+    }
+
+    private void schedule(long delay) {
+        boolean unmetered = mPrefs.getBoolean(Constants.CHECK_UNMETERED_ONLY_PREF,
+                Constants.CHECK_UNMETERED_ONLY_DEFAULT);
+        boolean charging = mPrefs.getBoolean(Constants.CHECK_CHARGING_ONLY_PREF,
+                Constants.CHECK_CHARGING_ONLY_DEFAULT);
+        boolean idle = mPrefs.getBoolean(Constants.CHECK_IDLE_ONLY_PREF,
+                Constants.CHECK_IDLE_ONLY_DEFAULT);
+
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(Constants.UPDATE_CHECK_JOB_ID);
+        jobScheduler.schedule(new JobInfo.Builder(Constants.UPDATE_CHECK_JOB_ID,
+                new ComponentName(mContext, UpdateCheckService.class))
+                .setMinimumLatency(delay)
+                .setRequiredNetworkType(unmetered ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(charging)
+                .setRequiresDeviceIdle(idle)
+                .setPersisted(true)
+                .build());
+
+        mPrefs.edit().putLong(Constants.NEXT_CHECK_DUE_PREF, System.currentTimeMillis() + delay).apply();
+        Log.d(TAG, "Next update check in " + delay / 1000 + "s");
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Rebuilds a package from the one of the installed build and a delta package.
+ * <p/>
+ * Delta packages are bsdiff patches (BSDIFF40), as written by the bsdiff tool
+ * from the two packages: a header followed by bzip2 streams of control
+ * tuples, of differences to add to ranges of the base package, and of bytes
+ * to insert. The three streams are read side by side and both packages are
+ * streamed through fixed size buffers, whatever their size.
+ */
+public class DeltaPatcher {
+    private static final String TAG = "DeltaPatcher";
+    private static final byte[] MAGIC = "BSDIFF40".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DeltaPatcher() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Apply a delta package to the base package, returns the MD5 of what was written
+     */
+    public static String apply(File base, File delta, File out) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] baseBuffer = new byte[BUFFER_SIZE];
+        byte[] tuple = new byte[8];
+        RandomAccessFile in = null;
+        InputStream control = null;
+        InputStream diff = null;
+        InputStream extra = null;
+        OutputStream os = null;
+        try {
+            in = new RandomAccessFile(base, "r");
+            byte[] header = new byte[HEADER_SIZE];
+            try (DataInputStream patch = new DataInputStream(new FileInputStream(delta))) {
+                patch.readFully(header);
+            }
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+                throw new IOException("Not a delta package");
+            }
+            long controlSize = readOffset(header, 8);
+            long diffSize = readOffset(header, 16);
+            long size = readOffset(header, 24);
+            if (controlSize < 0 || diffSize < 0 || size < 0
+                    || HEADER_SIZE + controlSize + diffSize > delta.length()) {
+                throw new IOException("Corrupt delta package header");
+            }
+            control = openStream(delta, HEADER_SIZE);
+            diff = openStream(delta, HEADER_SIZE + controlSize);
+            extra = openStream(delta, HEADER_SIZE + controlSize + diffSize);
+            FileOutputStream fos = new FileOutputStream(out);
+            os = new BufferedOutputStream(fos, BUFFER_SIZE);
+
+            long baseSize = in.length();
+            long basePosition = 0;
+            long written = 0;
+            while (written < size) {
+                long diffLength = readOffset(control, tuple);
+                long extraLength = readOffset(control, tuple);
+                long seek = readOffset(control, tuple);
+                if (diffLength < 0 || extraLength < 0
+                        || diffLength > size - written || extraLength > size - written - diffLength) {
+                    throw new IOException("Corrupt delta package");
+                }
+
+                // Differences added to the base package
+                for (long left = diffLength; left > 0; ) {
+                    int read = (int) Math.min(buffer.length, left);
+                    readFully(diff, buffer, read);
+                    // Parts out of the base package are taken as they are
+                    long from = Math.max(basePosition, 0);
+                    long to = Math.min(basePosition + read, baseSize);
+                    if (from < to) {
+                        in.seek(from);
+                        in.readFully(baseBuffer, 0, (int) (to - from));
+                        int shift = (int) (from - basePosition);
+                        for (int i = 0; i < to - from; i++) {
+                            buffer[shift + i] += baseBuffer[i];
+                        }
+                    }
+                    os.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    basePosition += read;
+                    left -= read;
+                }
+                // Bytes new to the package
+                for (long left = extraLength; left > 0; ) {
+                    int read = (int) Math.min(buffer.length, left);
+                    readFully(extra, buffer, read);
+                    os.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    left -= read;
+                }
+                written += diffLength + extraLength;
+                basePosition += seek;
+            }
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            try {
+                if (os != null) {
+                    os.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the rebuilt package", e);
+            }
+            try {
+                for (InputStream stream : new InputStream[]{control, diff, extra}) {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                }
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return MD5.toHex(digest.digest());
+    }
+
+    /**
+     * Open the bzip2 stream starting at the given offset of the delta package
+     */
+    private static InputStream openStream(File delta, long offset) throws IOException {
+        FileInputStream fis = new FileInputStream(delta);
+        try {
+            fis.getChannel().position(offset);
+            return new BZip2InputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("Truncated delta package");
+            }
+            offset += read;
+        }
+    }
+
+    private static long readOffset(InputStream in, byte[] buffer) throws IOException {
+        readFully(in, buffer, 8);
+        return readOffset(buffer, 0);
+    }
+
+    /**
+     * Read an offset of bsdiff: little-endian, sign and magnitude
+     */
+    private static long readOffset(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        long magnitude = value & Long.MAX_VALUE;
+        return value < 0 ? -magnitude : magnitude;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.simplixone.ota.R;
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.misc.State;
+import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.requests.SegmentedDownloader;
+import com.simplixone.ota.service.DownloadJobService;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Decides whether an update may be downloaded now, as the user and the
+ * server would like it: on an unmetered network, while charging, above a
+ * battery level, outside the user's quiet hours and within the off-peak
+ * windows the server published. Downloads that can't run now are left to
+ * {@link DownloadJobService}, which starts them once they can. While they
+ * run, a {@link DownloadPolicyMonitor} pauses them when they no longer can.
+ * <p/>
+ * Updates found by a check may also be prefetched, on unmetered networks
+ * only and as long as they leave enough free storage.
+ */
+public class DownloadPolicy {
+    private static final String TAG = "DownloadPolicy";
+
+    // Time windows are looked for a quarter of an hour at a time
+    private static final long TIME_STEP = 15 * 60 * 1000;
+    private static final long TIME_HORIZON = 48 * 60 * 60 * 1000;
+    private static final long BATTERY_RECHECK_DELAY = 30 * 60 * 1000; // 30 minutes
+    private static final long RETRY_BACKOFF = 5 * 60 * 1000; // 5 minutes
+    // Free storage left once a prefetched update is downloaded
+    private static final long PREFETCH_FREE_SPACE_MARGIN = 512 * 1024 * 1024;
+
+    public enum Constraint {
+        METERED(R.string.download_deferred_metered),
+        CHARGING(R.string.download_deferred_charging),
+        BATTERY(R.string.download_deferred_battery),
+        QUIET_HOURS(R.string.download_deferred_quiet_hours),
+        OFF_PEAK(R.string.download_deferred_off_peak),
+        STORAGE(R.string.download_deferred_storage);
+
+        private final int mMessage;
+
+        Constraint(int message) {
+            mMessage = message;
+        }
+
+        /**
+         * Get the resource id of the message telling what the download waits for
+         */
+        public int getMessage() {
+            return mMessage;
+        }
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public DownloadPolicy(Context context) {
+        mContext = context;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    private boolean isUnmeteredOnly() {
+        return isPrefetch() || isUnmeteredOnlyPref();
+    }
+
+    private boolean isUnmeteredOnlyPref() {
+        return mPrefs.getBoolean(Constants.DOWNLOAD_UNMETERED_ONLY_PREF,
+                Constants.DOWNLOAD_UNMETERED_ONLY_DEFAULT);
+    }
+
+    /**
+     * Whether the scheduled download was started by an update check rather than the user
+     */
+    public boolean isPrefetch() {
+        return mPrefs.getBoolean(Constants.SCHEDULED_DOWNLOAD_PREFETCH_PREF, false);
+    }
+
+    private static boolean hasSpaceFor(UpdateInfo update) {
+        return Utils.makeUpdateFolder().getUsableSpace()
+                >= update.getFileSize() + PREFETCH_FREE_SPACE_MARGIN;
+    }
+
+    private boolean isChargingOnly() {
+        return mPrefs.getBoolean(Constants.DOWNLOAD_CHARGING_ONLY_PREF,
+                Constants.DOWNLOAD_CHARGING_ONLY_DEFAULT);
+    }
+
+    private int getMinBattery() {
+        try {
+            return Integer.parseInt(mPrefs.getString(Constants.DOWNLOAD_MIN_BATTERY_PREF,
+                    Constants.DOWNLOAD_MIN_BATTERY_DEFAULT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the start and end hours of the quiet hours, or null if none
+     */
+    private int[] getQuietHours() {
+        String quietHours = mPrefs.getString(Constants.DOWNLOAD_QUIET_HOURS_PREF,
+                Constants.DOWNLOAD_QUIET_HOURS_DEFAULT);
+        String[] hours = quietHours.split("-");
+        if (hours.length != 2) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(hours[0]), Integer.parseInt(hours[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private int[] getOffPeakHours(UpdateInfo update) {
+        if (!mPrefs.getBoolean(Constants.DOWNLOAD_OFF_PEAK_PREF, Constants.DOWNLOAD_OFF_PEAK_DEFAULT)) {
+            return null;
+        }
+        return update.getOffPeakHours();
+    }
+
+    private Intent getBatteryStatus() {
+        return mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    private static boolean isCharging(Intent battery) {
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static int getBatteryLevel(Intent battery) {
+        if (battery == null) {
+            return 100;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0 ? 100 : level * 100 / scale;
+    }
+
+    private static boolean inWindow(int hour, int start, int end) {
+        return start < end ? hour >= start && hour < end : hour >= start || hour < end;
+    }
+
+    private boolean isTimeAllowed(long time, int[] quietHours, int[] offPeakHours) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        if (quietHours != null && inWindow(calendar.get(Calendar.HOUR_OF_DAY), quietHours[0], quietHours[1])) {
+            return false;
+        }
+        if (offPeakHours == null) {
+            return true;
+        }
+        calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        for (int i = 0; i + 1 < offPeakHours.length; i += 2) {
+            if (inWindow(hour, offPeakHours[i], offPeakHours[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get how long until the time windows allow the download, 0 if they do
+     * now or if they never do, in which case they are ignored
+     */
+    public long getDelayUntilWindow(UpdateInfo update) {
+        int[] quietHours = getQuietHours();
+        int[] offPeakHours = getOffPeakHours(update);
+        long now = System.currentTimeMillis();
+        if (isTimeAllowed(now, quietHours, offPeakHours)) {
+            return 0;
+        }
+        for (long time = now - now % TIME_STEP + TIME_STEP; time < now + TIME_HORIZON; time += TIME_STEP) {
+            if (isTimeAllowed(time, quietHours, offPeakHours)) {
+                return time - now;
+            }
+        }
+        Log.e(TAG, "Quiet hours and off-peak windows never overlap, ignoring them");
+        return 0;
+    }
+
+    /**
+     * Get how long the time windows still allow the download, or -1 if they
+     * don't limit it
+     */
+    public long getTimeLeftInWindow(UpdateInfo update) {
+        int[] quietHours = getQuietHours();
+        int[] offPeakHours = getOffPeakHours(update);
+        if (quietHours == null && offPeakHours == null) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        for (long time = now - now % TIME_STEP + TIME_STEP; time < now + TIME_HORIZON; time += TIME_STEP) {
+            if (!isTimeAllowed(time, quietHours, offPeakHours)) {
+                return time - now;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the first condition keeping the update from being downloaded now,
+     * or null if it may be
+     */
+    public Constraint getBlockingConstraint(UpdateInfo update) {
+        return getBlockingConstraint(update, isPrefetch());
+    }
+
+    /**
+     * Get the first condition keeping the update from being downloaded now,
+     * as a prefetch or as asked by the user, or null if it may be
+     */
+    public Constraint getBlockingConstraint(UpdateInfo update, boolean prefetch) {
+        if (prefetch && !hasSpaceFor(update)) {
+            return Constraint.STORAGE;
+        }
+        if (prefetch || isUnmeteredOnlyPref()) {
+            ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm == null || cm.isActiveNetworkMetered()) {
+                return Constraint.METERED;
+            }
+        }
+        Intent battery = getBatteryStatus();
+        if (isChargingOnly() && !isCharging(battery)) {
+            return Constraint.CHARGING;
+        }
+        if (getBatteryLevel(battery) < getMinBattery()) {
+            return Constraint.BATTERY;
+        }
+        if (getDelayUntilWindow(update) > 0) {
+            int[] quietHours = getQuietHours();
+            if (quietHours != null && !isTimeAllowed(System.currentTimeMillis(), quietHours, null)) {
+                return Constraint.QUIET_HOURS;
+            }
+            return Constraint.OFF_PEAK;
+        }
+        return null;
+    }
+
+    /**
+     * Get the update waiting for the policy to allow its download, or null
+     */
+    public UpdateInfo getScheduledUpdate() {
+        String fileName = mPrefs.getString(Constants.SCHEDULED_DOWNLOAD_PREF, null);
+        if (fileName == null) {
+            return null;
+        }
+        UpdateInfo update = State.loadState(mContext);
+        return update != null && fileName.equals(update.getFileName()) ? update : null;
+    }
+
+    /**
+     * Download the update as soon as the policy allows it
+     */
+    public void schedule(UpdateInfo update) {
+        schedule(update, 0);
+    }
+
+    /**
+     * Try the scheduled download again after it failed, backing off exponentially
+     */
+    public void scheduleRetry(UpdateInfo update) {
+        int failures = mPrefs.getInt(Constants.SCHEDULED_DOWNLOAD_FAILURES_PREF, 0) + 1;
+        mPrefs.edit().putInt(Constants.SCHEDULED_DOWNLOAD_FAILURES_PREF, failures).apply();
+        schedule(update, Math.min(RETRY_BACKOFF << Math.min(failures - 1, 16),
+                JobInfo.MAX_BACKOFF_DELAY_MILLIS));
+    }
+
+    private void schedule(UpdateInfo update, long minDelay) {
+        mPrefs.edit().putString(Constants.SCHEDULED_DOWNLOAD_PREF, update.getFileName()).apply();
+
+        long delay = Math.max(getDelayUntilWindow(update), minDelay);
+        boolean charging = isChargingOnly();
+        Intent battery = getBatteryStatus();
+        if (getBatteryLevel(battery) < getMinBattery()) {
+            // Only charging brings the level up, look again once it had some time to
+            charging = true;
+            if (isCharging(battery)) {
+                delay = Math.max(delay, BATTERY_RECHECK_DELAY);
+            }
+        }
+
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.schedule(new JobInfo.Builder(Constants.DOWNLOAD_JOB_ID,
+                new ComponentName(mContext, DownloadJobService.class))
+                .setMinimumLatency(delay)
+                .setRequiredNetworkType(isUnmeteredOnly()
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(charging)
+                .setRequiresStorageNotLow(isPrefetch())
+                .setPersisted(true)
+                .build());
+        Log.d(TAG, "Download of " + update.getFileName() + " scheduled in " + delay / 1000 + "s");
+    }
+
+    /**
+     * Schedule the pending download again, e.g. with the policy the user just changed
+     */
+    public void reschedule() {
+        UpdateInfo update = getScheduledUpdate();
+        if (update != null) {
+            schedule(update);
+        }
+    }
+
+    /**
+     * Download a newly found update in the background, if the user opted in
+     * and it would fit, so that it is ready to install once they look at it
+     */
+    public void prefetch(UpdateInfo update) {
+        if (!mPrefs.getBoolean(Constants.PREFETCH_UPDATES_PREF, Constants.PREFETCH_UPDATES_DEFAULT)
+                || update.getFileName().equals(mPrefs.getString(Constants.SCHEDULED_DOWNLOAD_PREF, null))
+                || update.getFileName().equals(mPrefs.getString(Constants.DECLINED_PREFETCH_PREF, null))
+                || new File(Utils.makeUpdateFolder(), update.getFileName()).isFile()) {
+            return;
+        }
+        SegmentedDownloader active = SegmentedDownloader.getActive();
+        if ((active != null && active.isRunning())
+                || mPrefs.getLong(Constants.DOWNLOAD_ID, -1) >= 0) {
+            return;
+        }
+        if (!hasSpaceFor(update)) {
+            Log.d(TAG, "Not enough free storage to prefetch " + update.getFileName());
+            return;
+        }
+        Log.d(TAG, "Prefetching " + update.getFileName());
+        mPrefs.edit().putBoolean(Constants.SCHEDULED_DOWNLOAD_PREFETCH_PREF, true).apply();
+        schedule(update);
+    }
+
+    /**
+     * The user cancelled or deleted the update, never prefetch it again
+     */
+    public void decline(String fileName) {
+        mPrefs.edit().putString(Constants.DECLINED_PREFETCH_PREF, fileName).apply();
+        if (fileName.equals(mPrefs.getString(Constants.SCHEDULED_DOWNLOAD_PREF, null))) {
+            cancel();
+        }
+    }
+
+    public void cancel() {
+        mPrefs.edit()
+                .remove(Constants.SCHEDULED_DOWNLOAD_PREF)
+                .remove(Constants.SCHEDULED_DOWNLOAD_PREFETCH_PREF)
+                .remove(Constants.SCHEDULED_DOWNLOAD_FAILURES_PREF)
+                .apply();
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(Constants.DOWNLOAD_JOB_ID);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.simplixone.ota.misc.UpdateInfo;
+import com.simplixone.ota.requests.SegmentedDownloader;
+
+/**
+ * Watches the network, the battery and the clock while a download the
+ * {@link DownloadPolicy} scheduled runs, and pauses it as soon as the policy
+ * no longer allows it. Once the download is over, what is left of it is
+ * scheduled again as the way it ended calls for.
+ */
+public class DownloadPolicyMonitor {
+    private static final String TAG = "DownloadPolicyMonitor";
+
+    private final Context mContext;
+    private final DownloadPolicy mPolicy;
+    private final UpdateInfo mUpdate;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Download running before ours, which isn't ours to pause
+    private final SegmentedDownloader mPrevious;
+    private volatile boolean mPaused;
+
+    public DownloadPolicyMonitor(Context context, UpdateInfo update) {
+        mContext = context;
+        mPolicy = new DownloadPolicy(context);
+        mUpdate = update;
+        mPrevious = SegmentedDownloader.getActive();
+    }
+
+    public void start() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        cm.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        mContext.registerReceiver(mBatteryReceiver, filter, null, mHandler);
+        long timeLeft = mPolicy.getTimeLeftInWindow(mUpdate);
+        if (timeLeft > 0) {
+            mHandler.postDelayed(mWindowClosed, timeLeft);
+        }
+    }
+
+    /**
+     * Stop watching, and schedule what is left of the download if needed
+     */
+    public void stop() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        cm.unregisterNetworkCallback(mNetworkCallback);
+        mContext.unregisterReceiver(mBatteryReceiver);
+        mHandler.removeCallbacks(mWindowClosed);
+
+        SegmentedDownloader downloader = getDownload();
+        if (downloader != null && downloader.getStatus() == SegmentedDownloader.STATUS_PAUSED && mPaused) {
+            Log.d(TAG, "Download of " + mUpdate.getFileName() + " paused by the policy, rescheduling it");
+            mPolicy.schedule(mUpdate);
+        } else if (downloader != null && downloader.getStatus() == SegmentedDownloader.STATUS_FAILED) {
+            mPolicy.scheduleRetry(mUpdate);
+        } else if (downloader != null && downloader.getStatus() == SegmentedDownloader.STATUS_CANCELLED) {
+            // Not to be fetched again by the next check
+            mPolicy.decline(mUpdate.getFileName());
+        } else {
+            // Done, or paused by the user who took over, or never started
+            mPolicy.cancel();
+        }
+    }
+
+    /**
+     * Get the download started for the update, or null if not started yet
+     */
+    private SegmentedDownloader getDownload() {
+        SegmentedDownloader downloader = SegmentedDownloader.getActive();
+        if (downloader == null || downloader == mPrevious
+                || !downloader.getFileName().equals(mUpdate.getFileName())) {
+            return null;
+        }
+        return downloader;
+    }
+
+    private void check() {
+        SegmentedDownloader downloader = getDownload();
+        if (downloader == null || !downloader.isRunning()) {
+            return;
+        }
+        DownloadPolicy.Constraint constraint = mPolicy.getBlockingConstraint(mUpdate);
+        // Free storage only matters before starting, the download itself takes some
+        if (constraint == null || constraint == DownloadPolicy.Constraint.STORAGE) {
+            return;
+        }
+        Log.d(TAG, "Pausing the download of " + mUpdate.getFileName() + ": " + constraint);
+        mPaused = true;
+        downloader.pause();
+    }
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            check();
+        }
+    };
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            check();
+        }
+    };
+
+    private final Runnable mWindowClosed = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+}
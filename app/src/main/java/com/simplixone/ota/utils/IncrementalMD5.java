@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import java.io.Serializable;
+
+/**
+ * MD5 (RFC 1321) whose intermediate state can be saved along with a partial
+ * download and restored later, which MessageDigest doesn't allow.
+ */
+public class IncrementalMD5 implements Serializable {
+    private static final int[] S = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+    private static final int[] K = new int[64];
+
+    static {
+        for (int i = 0; i < 64; i++) {
+            K[i] = (int) (long) ((1L << 32) * Math.abs(Math.sin(i + 1)));
+        }
+    }
+
+    private final int[] mState = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476};
+    private final byte[] mBuffer = new byte[64];
+    private long mCount;
+
+    public IncrementalMD5() {
+    }
+
+    private IncrementalMD5(IncrementalMD5 other) {
+        System.arraycopy(other.mState, 0, mState, 0, mState.length);
+        System.arraycopy(other.mBuffer, 0, mBuffer, 0, mBuffer.length);
+        mCount = other.mCount;
+    }
+
+    /**
+     * Get an independent copy of the current state
+     */
+    public IncrementalMD5 copy() {
+        return new IncrementalMD5(this);
+    }
+
+    /**
+     * Get how many bytes were hashed so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        int buffered = (int) (mCount & 63);
+        mCount += length;
+        if (buffered > 0) {
+            int fill = Math.min(64 - buffered, length);
+            System.arraycopy(data, offset, mBuffer, buffered, fill);
+            offset += fill;
+            length -= fill;
+            if (buffered + fill < 64) {
+                return;
+            }
+            transform(mBuffer, 0);
+        }
+        while (length >= 64) {
+            transform(data, offset);
+            offset += 64;
+            length -= 64;
+        }
+        System.arraycopy(data, offset, mBuffer, 0, length);
+    }
+
+    /**
+     * Get the hex digest of what was hashed so far, further updates remain possible
+     */
+    public String digestHex() {
+        IncrementalMD5 md5 = copy();
+        long bits = mCount << 3;
+        int buffered = (int) (mCount & 63);
+        int padding = buffered < 56 ? 56 - buffered : 120 - buffered;
+        byte[] tail = new byte[padding + 8];
+        tail[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            tail[padding + i] = (byte) (bits >>> (8 * i));
+        }
+        md5.update(tail, 0, tail.length);
+
+        StringBuilder hex = new StringBuilder(32);
+        for (int word : md5.mState) {
+            for (int i = 0; i < 4; i++) {
+                hex.append(String.format("%02x", (word >>> (8 * i)) & 0xff));
+            }
+        }
+        return hex.toString();
+    }
+
+    private void transform(byte[] block, int offset) {
+        int[] x = new int[16];
+        for (int i = 0; i < 16; i++) {
+            int p = offset + i * 4;
+            x[i] = (block[p] & 0xff) | ((block[p + 1] & 0xff) << 8)
+                    | ((block[p + 2] & 0xff) << 16) | ((block[p + 3] & 0xff) << 24);
+        }
+        int a = mState[0];
+        int b = mState[1];
+        int c = mState[2];
+        int d = mState[3];
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + K[i] + x[g], S[i]);
+            a = temp;
+        }
+        mState[0] += a;
+        mState[1] += b;
+        mState[2] += c;
+        mState[3] += d;
+    }
+}
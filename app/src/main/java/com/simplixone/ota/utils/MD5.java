@@ -10,9 +10,13 @@
  */
 package com.simplixone.ota.utils;
 
+import android.content.Context;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.simplixone.ota.misc.Constants;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -40,7 +44,63 @@ public class MD5 {
         return calculatedDigest.equalsIgnoreCase(md5);
     }
 
-    private static String calculateMD5(File updateFile) {
+    /**
+     * Check the MD5 of an update, using the one computed while it was
+     * downloaded as long as the file didn't change since
+     */
+    public static boolean checkMD5(Context context, String md5, File updateFile) {
+        String savedDigest = getSavedMD5(context, updateFile);
+        if (savedDigest != null && !TextUtils.isEmpty(md5)) {
+            return savedDigest.equalsIgnoreCase(md5);
+        }
+        return checkMD5(md5, updateFile);
+    }
+
+    /**
+     * Remember the MD5 of a file computed while it was written
+     */
+    public static void saveMD5(Context context, File file, String md5) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.DOWNLOAD_MD5_PREF_PREFIX + file.getName(),
+                        md5 + ":" + file.length() + ":" + file.lastModified())
+                .apply();
+    }
+
+    /**
+     * Get the MD5 saved for the file, or null if none or the file changed since
+     */
+    private static String getSavedMD5(Context context, File file) {
+        String saved = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Constants.DOWNLOAD_MD5_PREF_PREFIX + file.getName(), null);
+        if (saved == null) {
+            return null;
+        }
+        String[] parts = saved.split(":");
+        if (parts.length != 3 || !parts[1].equals(String.valueOf(file.length()))
+                || !parts[2].equals(String.valueOf(file.lastModified()))) {
+            return null;
+        }
+        return parts[0];
+    }
+
+    public static String calculateMD5(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return toHex(digest.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+    }
+
+    public static String toHex(byte[] md5sum) {
+        BigInteger bigInt = new BigInteger(1, md5sum);
+        String output = bigInt.toString(16);
+        // Fill to 32 chars
+        return String.format("%32s", output).replace(' ', '0');
+    }
+
+    public static String calculateMD5(File updateFile) {
         MessageDigest digest;
         try {
             digest = MessageDigest.getInstance("MD5");
@@ -63,12 +123,7 @@ public class MD5 {
             while ((read = is.read(buffer)) > 0) {
                 digest.update(buffer, 0, read);
             }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
+            return toHex(digest.digest());
         } catch (IOException e) {
             throw new RuntimeException("Unable to process file for MD5", e);
         } finally {
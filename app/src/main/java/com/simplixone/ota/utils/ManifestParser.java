@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.simplixone.ota.misc.BuildIndex;
+import com.simplixone.ota.misc.UpdateInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser turning the raw manifest bytes into a {@link BuildIndex}
+ * in a single pass. Fields we don't know about are skipped without being
+ * materialized.
+ * <p/>
+ * A manifest is either a single build object, or an object holding a
+ * "builds" array of build objects.
+ */
+public class ManifestParser {
+    private static final String TAG = "ManifestParser";
+
+    private ManifestParser() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Parse a manifest, returns null if it doesn't describe any build
+     */
+    public static BuildIndex parse(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            BuildIndex index = new BuildIndex();
+            BuildFields legacy = new BuildFields();
+            boolean hasBuildList = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("builds".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    readBuilds(reader, index);
+                    hasBuildList = true;
+                } else {
+                    readField(reader, name, legacy);
+                }
+            }
+            reader.endObject();
+            if (!hasBuildList) {
+                UpdateInfo build = legacy.build();
+                if (build == null) {
+                    Log.e(TAG, "Manifest is missing mandatory fields");
+                    return null;
+                }
+                index.add(build);
+            } else if (legacy.hasAnyField()) {
+                // A stray top-level field must not discard the build list
+                addBuild(index, legacy);
+            }
+            return index;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readBuilds(JsonReader reader, BuildIndex index) throws IOException {
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            BuildFields fields = new BuildFields();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                readField(reader, reader.nextName(), fields);
+            }
+            reader.endObject();
+            addBuild(index, fields);
+            count++;
+        }
+        reader.endArray();
+        Log.d(TAG, "Manifest lists " + count + " builds, retained " + index.size());
+    }
+
+    private static void addBuild(BuildIndex index, BuildFields fields) {
+        UpdateInfo build = fields.build();
+        if (build == null) {
+            Log.e(TAG, "Skipping build with missing mandatory fields");
+            return;
+        }
+        index.add(build);
+    }
+
+    private static void readField(JsonReader reader, String name, BuildFields fields)
+            throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.skipValue();
+            return;
+        }
+        switch (name) {
+            case "filename":
+                fields.fileName = reader.nextString();
+                break;
+            case "filesize":
+                fields.fileSize = reader.nextLong();
+                break;
+            case "build_date":
+                fields.buildDate = reader.nextString();
+                break;
+            case "md5":
+                fields.md5 = reader.nextString();
+                break;
+            case "url":
+                fields.url = reader.nextString();
+                break;
+            case "changelog_url":
+                fields.changelogUrl = reader.nextString();
+                break;
+            case "changelog_md5":
+                fields.changelogMD5 = reader.nextString();
+                break;
+            case "addons":
+                readAddons(reader, fields.addons);
+                break;
+            case "rollout":
+                readRollout(reader, fields);
+                break;
+            case "off_peak":
+                readOffPeak(reader, fields);
+                break;
+            case "block_map_url":
+                fields.blockMapUrl = reader.nextString();
+                break;
+            case "deltas":
+                readDeltas(reader, fields.deltas);
+                break;
+            default:
+                reader.skipValue();
+                break;
+        }
+    }
+
+    /**
+     * Read a staged rollout description:
+     * {"percentage": 20, "start": 1546300800,
+     *  "schedule": [{"hours": 0, "percentage": 5}, {"hours": 12, "percentage": 50}]}
+     */
+    private static void readRollout(JsonReader reader, BuildFields fields) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "percentage":
+                    fields.rolloutPercentage = reader.nextInt();
+                    break;
+                case "start":
+                    fields.rolloutStart = reader.nextLong();
+                    break;
+                case "schedule":
+                    readRolloutSchedule(reader, fields);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readRolloutSchedule(JsonReader reader, BuildFields fields)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        List<long[]> steps = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            long hours = -1;
+            long percentage = -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("hours".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    hours = reader.nextLong();
+                } else if ("percentage".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    percentage = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (hours >= 0 && percentage >= 0) {
+                steps.add(new long[]{hours * 3600, percentage});
+            }
+        }
+        reader.endArray();
+
+        Collections.sort(steps, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        fields.rolloutStepOffsets = new long[steps.size()];
+        fields.rolloutStepPercentages = new int[steps.size()];
+        for (int i = 0; i < steps.size(); i++) {
+            fields.rolloutStepOffsets[i] = steps.get(i)[0];
+            fields.rolloutStepPercentages[i] = (int) Math.min(steps.get(i)[1], 100);
+        }
+    }
+
+    /**
+     * Read the windows the server prefers downloads in, hours in UTC:
+     * [{"start_hour": 1, "end_hour": 6}]
+     */
+    private static void readOffPeak(JsonReader reader, BuildFields fields) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        List<Integer> hours = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            int start = -1;
+            int end = -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("start_hour".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    start = reader.nextInt();
+                } else if ("end_hour".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    end = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (start >= 0 && start < 24 && end >= 0 && end < 24 && start != end) {
+                hours.add(start);
+                hours.add(end);
+            }
+        }
+        reader.endArray();
+        if (!hours.isEmpty()) {
+            fields.offPeakHours = new int[hours.size()];
+            for (int i = 0; i < hours.size(); i++) {
+                fields.offPeakHours[i] = hours.get(i);
+            }
+        }
+    }
+
+    /**
+     * Read the delta packages of a build:
+     * [{"base_version": "...", "base_build_date": "20190101-1200", "base_filename": "...",
+     *   "base_md5": "...", "url": "...", "filesize": 12345, "md5": "..."}]
+     * Either the base version or the base build date identifies the build to patch.
+     */
+    private static void readDeltas(JsonReader reader, List<Map<String, String>> deltas)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            Map<String, String> delta = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case UpdateInfo.DELTA_BASE_VERSION:
+                    case UpdateInfo.DELTA_BASE_BUILD_DATE:
+                    case UpdateInfo.DELTA_BASE_FILENAME:
+                    case UpdateInfo.DELTA_BASE_MD5:
+                    case UpdateInfo.DELTA_URL:
+                    case UpdateInfo.DELTA_FILESIZE:
+                    case UpdateInfo.DELTA_MD5:
+                        // Numbers are read as strings too
+                        delta.put(name, reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if ((delta.containsKey(UpdateInfo.DELTA_BASE_VERSION)
+                    || delta.containsKey(UpdateInfo.DELTA_BASE_BUILD_DATE))
+                    && delta.containsKey(UpdateInfo.DELTA_BASE_FILENAME)
+                    && delta.containsKey(UpdateInfo.DELTA_BASE_MD5)
+                    && delta.containsKey(UpdateInfo.DELTA_URL)
+                    && delta.containsKey(UpdateInfo.DELTA_MD5)) {
+                deltas.add(delta);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static void readAddons(JsonReader reader, List<Map<String, String>> addons)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            Map<String, String> addon = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "title":
+                    case "summary":
+                    case "url":
+                        addon.put(name, reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if (addon.size() == 3) {
+                addons.add(addon);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static class BuildFields {
+        String fileName;
+        long fileSize = -1;
+        String buildDate;
+        String md5;
+        String url;
+        String changelogUrl;
+        String changelogMD5;
+        List<Map<String, String>> addons = new ArrayList<>();
+        int rolloutPercentage = 100;
+        long rolloutStart;
+        long[] rolloutStepOffsets;
+        int[] rolloutStepPercentages;
+        List<Map<String, String>> deltas = new ArrayList<>();
+        String blockMapUrl;
+        int[] offPeakHours;
+
+        boolean hasAnyField() {
+            return fileName != null || fileSize >= 0 || buildDate != null
+                    || md5 != null || url != null;
+        }
+
+        UpdateInfo build() {
+            if (fileName == null || fileSize < 0 || buildDate == null || md5 == null || url == null) {
+                return null;
+            }
+            return new UpdateInfo.Builder()
+                    .setFileName(fileName)
+                    .setFilesize(fileSize)
+                    .setBuildDate(buildDate)
+                    .setMD5(md5)
+                    .setDownloadUrl(url)
+                    .setChangelogUrl(changelogUrl)
+                    .setChangelogMD5(changelogMD5)
+                    .setAddons(addons)
+                    .setRolloutPercentage(rolloutPercentage)
+                    .setRolloutStart(rolloutStart)
+                    .setRolloutStepOffsets(rolloutStepOffsets)
+                    .setRolloutStepPercentages(rolloutStepPercentages)
+                    .setDeltas(deltas)
+                    .setBlockMapUrl(blockMapUrl)
+                    .setOffPeakHours(offPeakHours)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 Pixel Experience (jhenrique09)
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+package com.simplixone.ota.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.simplixone.ota.misc.BuildIndex;
+import com.simplixone.ota.misc.Constants;
+import com.simplixone.ota.misc.UpdateInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * Staged rollout admission. Every device falls in a stable bucket between 0
+ * and 99 for a given build, derived from a random identifier generated once
+ * and kept locally. A build is offered once the share of devices it is rolled
+ * out to, following its ramp schedule, covers the device bucket.
+ */
+public class RolloutPolicy implements BuildIndex.Filter {
+    private static final String TAG = "RolloutPolicy";
+
+    private final String mDeviceId;
+
+    public RolloutPolicy(Context context) {
+        mDeviceId = getDeviceId(context);
+    }
+
+    private static String getDeviceId(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String id = prefs.getString(Constants.ROLLOUT_ID_PREF, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString(Constants.ROLLOUT_ID_PREF, id).apply();
+        }
+        return id;
+    }
+
+    /**
+     * Get the bucket of this device for the given build
+     */
+    public int getBucket(UpdateInfo build) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest((mDeviceId + ":" + build.getFileName())
+                    .getBytes(StandardCharsets.UTF_8));
+            int value = ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16)
+                    | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+            return (int) ((value & 0xffffffffL) % 100);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Get the share of devices, in percent, the build is offered to at the given time
+     */
+    public static int getAdmittedPercentage(UpdateInfo build, long now) {
+        long[] offsets = build.getRolloutStepOffsets();
+        int[] percentages = build.getRolloutStepPercentages();
+        if (offsets == null || percentages == null || offsets.length == 0) {
+            return build.getRolloutPercentage();
+        }
+        long start = build.getRolloutStart() > 0 ? build.getRolloutStart() : build.getDateTimestamp();
+        long elapsed = now - start;
+        int percentage = 0;
+        for (int i = 0; i < offsets.length && offsets[i] <= elapsed; i++) {
+            percentage = percentages[i];
+        }
+        return Math.min(percentage, build.getRolloutPercentage());
+    }
+
+    @Override
+    public boolean accept(UpdateInfo build) {
+        int percentage = getAdmittedPercentage(build, System.currentTimeMillis() / 1000);
+        int bucket = getBucket(build);
+        if (bucket >= percentage) {
+            Log.d(TAG, build.getFileName() + " held back, bucket " + bucket
+                    + " not in the first " + percentage + "%");
+            return false;
+        }
+        return true;
+    }
+}
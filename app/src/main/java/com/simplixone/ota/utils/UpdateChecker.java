@@ -12,107 +12,98 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.app.job.JobInfo;
-import android.app.job.JobScheduler;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.VolleyLog;
-import com.simplixone.ota.requests.UpdatesJsonObjectRequest;
-import com.simplixone.ota.service.UpdateCheckService;
+import com.simplixone.ota.requests.ManifestFetcher;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import com.simplixone.ota.R;
 import com.simplixone.ota.UpdaterApplication;
 import com.simplixone.ota.activities.UpdaterActivity;
+import com.simplixone.ota.misc.BuildIndex;
+import com.simplixone.ota.misc.CheckMetrics;
 import com.simplixone.ota.misc.Constants;
 import com.simplixone.ota.misc.State;
 import com.simplixone.ota.misc.UpdateInfo;
 
-import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static android.content.Context.NOTIFICATION_SERVICE;
 
-public class UpdateChecker implements Response.ErrorListener, Response.Listener<JSONObject> {
+public class UpdateChecker {
 
     // broadcast actions
     public static final String ACTION_CHECK_FINISHED = "com.simplixone.ota.action.UPDATE_CHECK_FINISHED";
     // extra for ACTION_CHECK_FINISHED: is update available?
     public static final String EXTRA_UPDATE_AVAILABLE = "update_available";
     public static final String EXTRA_CHECK_RESULT = "check_result";
+    // extra for ACTION_CHECK_FINISHED: same manifests and result as last time
+    public static final String EXTRA_UNCHANGED = "unchanged";
     private static final String TAG = "UpdateChecker";
-    // DefaultRetryPolicy values for Volley
-    private static final int UPDATE_REQUEST_TIMEOUT = 15000; // 15 seconds
-    private static final int UPDATE_REQUEST_MAX_RETRIES = 0;
+    // A successful result this recent is handed out again instead of checking
+    private static final long RESULT_REUSE_WINDOW = 10 * 1000; // 10 seconds
+
+    // Single-flight state, only touched from the main thread
+    private static UpdateChecker sInFlight;
+    private static final List<UpdaterCheckerResult> sWaiters = new ArrayList<>();
+    private static Intent sLastResultIntent;
+    private static long sLastResultTime;
 
     private Context mContext;
     private UpdaterCheckerResult mResultListener;
+    private List<String> mChannels;
+    private Map<String, BuildIndex> mChannelBuilds = new HashMap<>();
+    private int mPendingChannels;
+    private boolean mAllUnchanged = true;
+    private long mWireBytes;
+    private long mDecodedBytes;
+    private VolleyError mLastError;
+    // Metrics of the fetch that completed last, i.e. the slowest one
+    private CheckMetrics mMetrics;
 
     public UpdateChecker(Context context, UpdaterCheckerResult resultListener) {
         mContext = context;
         mResultListener = resultListener;
     }
 
-    private static UpdateInfo parseJSON(String jsonString) {
-        try {
-            JSONObject obj = new JSONObject(jsonString);
-
-            String addons;
-
-            try {
-                addons = obj.getJSONArray("addons").toString();
-            } catch (Exception e2) {
-                addons = "[]";
-            }
-
-            return new UpdateInfo.Builder()
-                    .setFileName(obj.getString("filename"))
-                    .setFilesize(obj.getLong("filesize"))
-                    .setBuildDate(obj.getString("build_date"))
-                    .setMD5(obj.getString("md5"))
-                    .setDownloadUrl(obj.getString("url"))
-                    .setAddons(addons)
-                    .build();
-        } catch (JSONException e) {
-            Log.e(TAG, "Error in JSON result", e);
-        }
-        return null;
-    }
-
-    public static void cancelAllRequests(Context context){
-        ((UpdaterApplication) context.getApplicationContext()).getQueue().cancelAll(TAG);
+    /**
+     * Stop waiting for the check in progress. The listener is told it was
+     * cancelled, and the request is only cancelled if no one else waits for it.
+     */
+    public static void cancel(Context context, UpdaterCheckerResult listener) {
+        if (!sWaiters.remove(listener)) {
+            return;
+        }
+        listener.onCancelled();
+        if (sInFlight != null && sWaiters.isEmpty()) {
+            Log.d(TAG, "Nobody waits for the check anymore, cancelling it");
+            ManifestFetcher.cancelAll(context);
+            sInFlight = null;
+        }
     }
 
-    public static void scheduleUpdateService(Context context) {
-        scheduleUpdateService(context, false);
+    public static void scheduleUpdateService(Context context, boolean lastCheckSucceeded) {
+        CheckSchedulePolicy policy = new CheckSchedulePolicy(context);
+        if (lastCheckSucceeded) {
+            policy.onCheckSucceeded();
+        } else {
+            policy.onCheckFailed();
+        }
     }
 
-    public static void scheduleUpdateService(Context context, Boolean onBoot) {
-        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
-        jobScheduler.cancelAll();
-        if (onBoot){
-            jobScheduler.schedule(new JobInfo.Builder(0, new ComponentName(context, UpdateCheckService.class))
-                    .setPeriodic(Constants.UPDATE_DEFAULT_FREQ)
-                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                    .setPersisted(true)
-                    .build());
-        }else{
-            jobScheduler.schedule(new JobInfo.Builder(0, new ComponentName(context, UpdateCheckService.class))
-                    .setMinimumLatency(Constants.UPDATE_DEFAULT_FREQ)
-                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                    .setPersisted(true)
-                    .build());
-        }
+    public static void scheduleUpdateServiceOnBoot(Context context) {
+        new CheckSchedulePolicy(context).onBoot();
     }
 
     private void recordAvailableUpdate(UpdateInfo availableUpdate, Intent finishedIntent) {
@@ -131,47 +122,116 @@ public class UpdateChecker implements Response.ErrorListener, Response.Listener<
         mContext.sendBroadcast(finishedIntent);
     }
 
-    private URI getServerURI() {
-        return URI.create(String.format(Constants.OTA_URL, Utils.getDeviceName(), Utils.getOTAVersionCode()));
+    public CheckMetrics getMetrics() {
+        return mMetrics;
     }
 
+    /**
+     * Check for updates. Concurrent checks share the same request and result,
+     * and a result only a few seconds old is returned without a new request.
+     */
     public void check() {
-        // Get the actual ROM Update Server URL
-        URI updateServerUri = getServerURI();
-        Toast.makeText(mContext, updateServerUri.toString(),
-                Toast.LENGTH_LONG).show();
-        UpdatesJsonObjectRequest request;
-        request = new UpdatesJsonObjectRequest(updateServerUri.toASCIIString(),
-                Utils.getUserAgentString(mContext), null, this, this);
-        // Improve request error tolerance
-        request.setRetryPolicy(new DefaultRetryPolicy(UPDATE_REQUEST_TIMEOUT,
-                UPDATE_REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
-        // Set the tag for the request, reuse logging tag
-        request.setTag(TAG);
-
-        ((UpdaterApplication) mContext.getApplicationContext()).getQueue().add(request);
+        if (sLastResultIntent != null
+                && SystemClock.elapsedRealtime() - sLastResultTime < RESULT_REUSE_WINDOW) {
+            Log.d(TAG, "Reusing the result of the check that just completed");
+            mContext.sendBroadcast(sLastResultIntent);
+            if (mResultListener != null) {
+                mResultListener.onResult(true);
+            }
+            return;
+        }
+        if (mResultListener != null) {
+            sWaiters.add(mResultListener);
+        }
+        if (sInFlight != null) {
+            Log.d(TAG, "Joining the check already in progress");
+            return;
+        }
+        sInFlight = this;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mChannels = Utils.getUpdateChannels(mContext);
+        mPendingChannels = mChannels.size();
+        // Fetch the manifests of all subscribed channels at once
+        for (String channel : mChannels) {
+            // Get the actual ROM Update Server URL, then its mirrors
+            List<String> urls = Utils.getServerURLs(channel);
+            if (Utils.isOnline(mContext) && channel.equals(mChannels.get(0))) {
+                Toast.makeText(mContext, urls.get(0),
+                        Toast.LENGTH_LONG).show();
+            }
+            new ChannelFetch(channel, urls).start();
+        }
 
         Date d = new Date();
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime()).apply();
+        prefs.edit().putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime()).apply();
+    }
+
+    private void onChannelsFetched() {
+        if (mChannelBuilds.isEmpty()) {
+            onError(mLastError);
+            return;
+        }
+        // Merge in subscription order, so stable wins over a build with the
+        // same timestamp on another channel
+        BuildIndex merged = new BuildIndex();
+        for (String channel : mChannels) {
+            BuildIndex builds = mChannelBuilds.get(channel);
+            if (builds != null) {
+                merged.addAll(builds);
+            }
+        }
+        onBuildIndex(merged);
     }
 
-    @Override
-    public void onErrorResponse(VolleyError volleyError) {
-        VolleyLog.e("Error: ", volleyError.getMessage());
-        VolleyLog.e("Error type: " + volleyError.toString());
+    private void onError(VolleyError volleyError) {
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
         intent.putExtra(EXTRA_CHECK_RESULT, 0);
+        mMetrics.putExtras(intent);
         mContext.sendBroadcast(intent);
-        if (mResultListener != null) {
-            mResultListener.onResult(false);
+        notifyWaiters(false);
+    }
+
+    private void notifyWaiters(boolean result) {
+        if (sInFlight != this) {
+            return;
+        }
+        sInFlight = null;
+        List<UpdaterCheckerResult> waiters = new ArrayList<>(sWaiters);
+        sWaiters.clear();
+        for (UpdaterCheckerResult waiter : waiters) {
+            waiter.onResult(result);
         }
     }
 
-    @Override
-    public void onResponse(JSONObject jsonObject) {
-        UpdateInfo update = UpdateChecker.parseJSON(jsonObject.toString());
+    private void onBuildIndex(BuildIndex builds) {
+        // Builds in a staged rollout that doesn't cover this device yet are
+        // neither notified nor offered for download
+        UpdateInfo update = builds.selectBest(new RolloutPolicy(mContext));
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
         intent.putExtra(EXTRA_CHECK_RESULT, 1);
+        mMetrics.putExtras(intent);
+
+        // Nothing moved since the last check: the state on disk, the
+        // notification and the list shown are all still right. Clearing the
+        // cache dir drops the manifest caches too, so the state is rewritten.
+        String result = update != null && update.isNewerThanInstalled() ? update.getFileName() : "";
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if (mAllUnchanged && result.equals(prefs.getString(Constants.LAST_CHECK_RESULT_PREF, null))) {
+            Log.d(TAG, "Manifests and result unchanged");
+            intent.putExtra(EXTRA_UNCHANGED, true);
+            intent.putExtra(EXTRA_UPDATE_AVAILABLE, !result.isEmpty());
+            if (((UpdaterApplication) mContext.getApplicationContext()).isMainActivityActive()) {
+                // Only there to close the progress dialog of a manual check
+                mContext.sendBroadcast(intent);
+            }
+            sLastResultIntent = intent;
+            sLastResultTime = SystemClock.elapsedRealtime();
+            notifyWaiters(true);
+            return;
+        }
+        prefs.edit().putString(Constants.LAST_CHECK_RESULT_PREF, result).apply();
+
         if (update != null && update.isNewerThanInstalled()) {
             intent.putExtra(EXTRA_UPDATE_AVAILABLE, true);
             UpdaterApplication app = (UpdaterApplication) mContext.getApplicationContext();
@@ -219,8 +279,55 @@ public class UpdateChecker implements Response.ErrorListener, Response.Listener<
         }
         recordAvailableUpdate(update, intent);
         State.saveState(mContext, update);
-        if (mResultListener != null) {
-            mResultListener.onResult(true);
+        if (update != null && update.isNewerThanInstalled()) {
+            new DownloadPolicy(mContext).prefetch(update);
+        }
+        sLastResultIntent = intent;
+        sLastResultTime = SystemClock.elapsedRealtime();
+        notifyWaiters(true);
+    }
+
+    private class ChannelFetch implements ManifestFetcher.Callback {
+        private final String mChannel;
+        private final ManifestFetcher mFetcher;
+
+        ChannelFetch(String channel, List<String> urls) {
+            mChannel = channel;
+            mFetcher = new ManifestFetcher(mContext, urls, this);
+        }
+
+        void start() {
+            mFetcher.fetch();
+        }
+
+        @Override
+        public void onManifest(BuildIndex builds) {
+            if (!mFetcher.isUnchanged()) {
+                mAllUnchanged = false;
+            }
+            builds.setChannel(mChannel);
+            mChannelBuilds.put(mChannel, builds);
+            onFetched();
+        }
+
+        @Override
+        public void onError(VolleyError error) {
+            Log.d(TAG, "Unable to fetch the " + mChannel + " channel");
+            // The merged result can't be compared with the previous one
+            mAllUnchanged = false;
+            mLastError = error;
+            onFetched();
+        }
+
+        private void onFetched() {
+            // Report the transfer of all channels together
+            mWireBytes += mFetcher.getMetrics().getWireBytes();
+            mDecodedBytes += mFetcher.getMetrics().getDecodedBytes();
+            mMetrics = mFetcher.getMetrics();
+            mMetrics.setTransferSize(mWireBytes, mDecodedBytes);
+            if (--mPendingChannels == 0) {
+                onChannelsFetched();
+            }
         }
     }
 }
@@ -10,4 +10,9 @@ package com.simplixone.ota.utils;
 
 public interface UpdaterCheckerResult {
     void onResult(boolean result);
+
+    /**
+     * The caller stopped waiting for the check, which may still go on for others
+     */
+    void onCancelled();
 }
\ No newline at end of file
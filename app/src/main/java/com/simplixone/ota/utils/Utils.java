@@ -20,6 +20,7 @@ import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.webkit.URLUtil;
 
 import com.simplixone.ota.R;
@@ -34,7 +35,10 @@ import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -111,6 +115,67 @@ public class Utils {
         return getSystemProperty(Constants.OTA_VERSION_CODE, "");
     }
 
+    /**
+     * Get the update channels the user subscribed to, stable first
+     */
+    public static List<String> getUpdateChannels(Context context) {
+        Set<String> subscribed = PreferenceManager.getDefaultSharedPreferences(context)
+                .getStringSet(Constants.UPDATE_CHANNELS_PREF, null);
+        List<String> channels = new ArrayList<>();
+        if (subscribed == null || subscribed.isEmpty() || subscribed.contains(Constants.CHANNEL_STABLE)) {
+            channels.add(Constants.CHANNEL_STABLE);
+        }
+        if (subscribed != null) {
+            for (String channel : new TreeSet<>(subscribed)) {
+                if (!channels.contains(channel)) {
+                    channels.add(channel);
+                }
+            }
+        }
+        return channels;
+    }
+
+    public static List<String> getServerURLs() {
+        return getServerURLs(Constants.CHANNEL_STABLE);
+    }
+
+    /**
+     * Get the manifest urls of a channel, primary server first, then its mirrors.
+     * The primary server, e.g. a local test server, and the mirrors, as a comma
+     * separated list, can be overridden with system properties.
+     */
+    public static List<String> getServerURLs(String channel) {
+        String version = getOTAVersionCode();
+        if (!Constants.CHANNEL_STABLE.equals(channel)) {
+            version += String.format(Constants.OTA_CHANNEL_SUFFIX, channel);
+        }
+        List<String> urls = new ArrayList<>();
+        String server = getSystemProperty(Constants.OTA_SERVER, "");
+        urls.add(String.format(server.isEmpty() ? Constants.OTA_URL : server,
+                getDeviceName(), version));
+        String override = getSystemProperty(Constants.OTA_MIRRORS, "");
+        String[] mirrors = override.isEmpty() ? Constants.OTA_MIRROR_URLS : override.split(",");
+        for (String mirror : mirrors) {
+            String url = String.format(mirror.trim(), getDeviceName(), version);
+            if (isValidURL(url) && !urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Get the url of the push stream of this device, or null if there is none
+     */
+    public static String getPushURL() {
+        String url = getSystemProperty(Constants.OTA_PUSH_URL, "");
+        if (url.isEmpty()) {
+            return null;
+        }
+        url = String.format(url, getDeviceName());
+        return isValidURL(url) ? url : null;
+    }
+
     public static String getInstalledVersion() {
         return getSystemProperty(Constants.CURRENT_VERSION, "");
     }
@@ -162,6 +227,21 @@ public class Utils {
         return false;
     }
 
+    /**
+     * Get the kind of the active network, e.g. WIFI or MOBILE-LTE
+     */
+    public static String getNetworkType(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm != null ? cm.getActiveNetworkInfo() : null;
+        if (activeNetwork == null) {
+            return "NONE";
+        }
+        if (activeNetwork.getType() == ConnectivityManager.TYPE_MOBILE) {
+            return activeNetwork.getTypeName() + "-" + activeNetwork.getSubtypeName();
+        }
+        return activeNetwork.getTypeName();
+    }
+
     public static boolean isOnMobileData(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         if (cm != null) {